@@ -1,16 +1,27 @@
 package au.com.digitalspider.cube;
 
+import java.util.Arrays;
+
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 
+import au.com.digitalspider.cube.batch.BatchSlottingJob;
+
 @Configuration
 @ComponentScan("au.com.digitalspider.cube")
 @SpringBootApplication
 public class Application {
 
-	public static void main(String[] args) {
+	/**
+	 * Start the web application, or with the first argument "batch", run the {@link BatchSlottingJob} instead
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length>0 && args[0].equals(BatchSlottingJob.COMMAND)) {
+			BatchSlottingJob.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		SpringApplication.run(Application.class, args);
 	}
 
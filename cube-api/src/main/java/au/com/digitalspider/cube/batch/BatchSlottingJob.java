@@ -0,0 +1,206 @@
+package au.com.digitalspider.cube.batch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.service.SlottingService;
+import au.com.digitalspider.cube.service.impl.CachingCubingService;
+import au.com.digitalspider.cube.service.impl.CachingSlottingService;
+import au.com.digitalspider.cube.service.impl.CubeItemCSVReader;
+import au.com.digitalspider.cube.service.impl.CubingServiceImpl;
+import au.com.digitalspider.cube.service.impl.SlottingServiceImpl;
+
+/**
+ * Slots every order in a manifest file using the {@link SlottingService}, without going through the web application.
+ *
+ * The manifest is CSV in the format "OrderID,PID,weight,length,width,height,quantity", with the lines of each order together.
+ * It is memory mapped and read one order at a time, and the orders are slotted in parallel. At most maxPendingOrders
+ * orders are held in memory, and the results are written in the same order as the manifest, in the format
+ * "OrderID,result,length,width,height,weight,volumePercent,message".
+ *
+ * Usage: java -jar cube.jar batch manifest.csv spaces.csv output.csv [threads]
+ * where spaces.csv holds the cubeSpaces available, in the format "PID,weight,length,width,height,quantity".
+ */
+public class BatchSlottingJob {
+
+	public static Logger LOG = Logger.getLogger(BatchSlottingJob.class);
+
+	public static final String COMMAND = "batch";
+	public static final String OUTPUT_HEADER = "OrderID,result,length,width,height,weight,volumePercent,message";
+	public static final int CACHE_SIZE = 10000;
+
+	private SlottingService slottingService;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int maxPendingOrders = threads*4;
+
+	private int orderCount;
+	private int failedCount;
+
+	public BatchSlottingJob(SlottingService slottingService) {
+		this.slottingService = slottingService;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length<3) {
+			System.err.println("Usage: "+COMMAND+" manifest.csv spaces.csv output.csv [threads]");
+			System.exit(1);
+		}
+		// Repeated orders are common in a manifest, so both services are cached
+		CachingCubingService cubingService = new CachingCubingService(new CubingServiceImpl(), CACHE_SIZE);
+		SlottingServiceImpl slottingService = new SlottingServiceImpl();
+		slottingService.setCubingService(cubingService);
+		CachingSlottingService cachingSlottingService = new CachingSlottingService(slottingService, CACHE_SIZE);
+		BatchSlottingJob job = new BatchSlottingJob(cachingSlottingService);
+		if (args.length>3) {
+			job.setThreads(Integer.parseInt(args[3]));
+		}
+		job.run(Paths.get(args[0]), Paths.get(args[1]), Paths.get(args[2]));
+		LOG.info("Slotting "+cachingSlottingService.getCache());
+		LOG.info("Cubing "+cubingService.getCache());
+	}
+
+	/**
+	 * Slot each order in the manifest into the spaces, writing the results to the output file
+	 *
+	 * @param manifest the orders, in the format "OrderID,PID,weight,length,width,height,quantity"
+	 * @param spacesFile the cubeSpaces available, in the format "PID,weight,length,width,height,quantity"
+	 * @param output the file to write the results to
+	 */
+	public void run(Path manifest, Path spacesFile, Path output) throws IOException, InterruptedException {
+		long startTime = System.currentTimeMillis();
+		List<CubeItem> spaces = new CubingServiceImpl().parseCSVInput(spacesFile);
+		LOG.info("Batch slotting START. manifest="+manifest+", spaces="+spaces+", threads="+threads);
+		orderCount = 0;
+		failedCount = 0;
+
+		ExecutorService executor = createExecutor();
+		Deque<Future<String>> pending = new ArrayDeque<Future<String>>(maxPendingOrders);
+		CubeItemCSVReader reader = new CubeItemCSVReader(new MappedFileReader(manifest, CubeItemCSVReader.UTF8), true);
+		Writer writer = Files.newBufferedWriter(output, CubeItemCSVReader.UTF8);
+		try {
+			writer.write(OUTPUT_HEADER);
+			writer.write('\n');
+			String orderId = null;
+			List<CubeItem> items = new ArrayList<CubeItem>();
+			CubeItem cube;
+			while ((cube = reader.next())!=null) {
+				if (orderId!=null && !orderId.equals(reader.getOrderId())) {
+					submit(executor, pending, writer, orderId, spaces, items);
+					items = new ArrayList<CubeItem>();
+				}
+				orderId = reader.getOrderId();
+				items.add(cube);
+			}
+			if (orderId!=null) {
+				submit(executor, pending, writer, orderId, spaces, items);
+			}
+			while (!pending.isEmpty()) {
+				writeResult(pending.removeFirst(), writer);
+			}
+		} finally {
+			executor.shutdownNow();
+			reader.close();
+			writer.close();
+		}
+		LOG.info("Batch slotting DONE. orders="+orderCount+", failed="+failedCount+", time="+(System.currentTimeMillis()-startTime)+"ms");
+	}
+
+	/**
+	 * Submit the order to be slotted, first writing the oldest result if there are already maxPendingOrders
+	 */
+	private void submit(ExecutorService executor, Deque<Future<String>> pending, Writer writer, final String orderId, final List<CubeItem> spaces, final List<CubeItem> items) throws IOException, InterruptedException {
+		if (pending.size()>=maxPendingOrders) {
+			writeResult(pending.removeFirst(), writer);
+		}
+		pending.addLast(executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return slot(orderId, spaces, items);
+			}
+		}));
+		orderCount++;
+	}
+
+	/**
+	 * Slot a single order, returning the output line
+	 */
+	private String slot(String orderId, List<CubeItem> spaces, List<CubeItem> items) {
+		try {
+			CubeSpace cubeSpace = slottingService.findCubeSpace(spaces, items);
+			// The total weight of the cube space is not kept up to date, so the weight is that of the items
+			double weight = 0;
+			for (CubeItem cube : items) {
+				weight += cube.weight*cube.quantity;
+			}
+			return String.format(Locale.ROOT, "%s,OK,%s,%s,%s,%s,%.2f,", orderId, cubeSpace.maxLength, cubeSpace.maxWidth, cubeSpace.maxHeight,
+					weight, cubeSpace.getVolumePercent());
+		} catch (Exception e) {
+			String message = e.getMessage()==null ? e.getClass().getSimpleName() : e.getMessage().replace(',', ' ').replace('\n', ' ').replace('\r', ' ');
+			return orderId+",FAIL,,,,,,"+message;
+		}
+	}
+
+	private void writeResult(Future<String> result, Writer writer) throws IOException, InterruptedException {
+		String line;
+		try {
+			line = result.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Could not slot order", e.getCause());
+		}
+		if (line.contains(",FAIL,")) {
+			failedCount++;
+		}
+		writer.write(line);
+		writer.write('\n');
+	}
+
+	private ExecutorService createExecutor() {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "batch-slotting-"+threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getOrderCount() {
+		return orderCount;
+	}
+
+	public int getFailedCount() {
+		return failedCount;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+		this.maxPendingOrders = threads*4;
+	}
+
+	public void setMaxPendingOrders(int maxPendingOrders) {
+		this.maxPendingOrders = maxPendingOrders;
+	}
+}
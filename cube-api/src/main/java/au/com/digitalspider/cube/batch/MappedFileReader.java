@@ -0,0 +1,80 @@
+package au.com.digitalspider.cube.batch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link Reader} over a memory mapped file, so a large file is read through the page cache without copying it onto the heap.
+ * Files larger than {@link #REGION_SIZE} are mapped one region at a time, as a single mapping is limited to 2GB.
+ */
+public class MappedFileReader extends Reader {
+
+	public static final long REGION_SIZE = 256L*1024*1024;
+
+	private FileChannel channel;
+	private long size;
+	private long regionStart;
+	private MappedByteBuffer region;
+	private CharsetDecoder decoder;
+	private boolean flushed;
+
+	public MappedFileReader(Path path, Charset charset) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		size = channel.size();
+		decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		map(0);
+	}
+
+	/**
+	 * Map the region starting at the given position in the file
+	 */
+	private void map(long position) throws IOException {
+		regionStart = position;
+		region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size-position));
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len==0) {
+			return 0;
+		}
+		if (flushed) {
+			return -1;
+		}
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		while (out.position()==off) {
+			boolean lastRegion = regionStart+region.limit()>=size;
+			CoderResult result = decoder.decode(region, out, lastRegion);
+			if (result.isError()) {
+				result.throwException();
+			}
+			if (out.position()>off) {
+				break;
+			}
+			if (lastRegion) {
+				decoder.flush(out);
+				flushed = true;
+				break;
+			}
+			// Remap from the first byte not decoded, which may be part of a char split across the regions
+			map(regionStart+region.position());
+		}
+		int read = out.position()-off;
+		return read==0 ? -1 : read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		region = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,28 @@
+package au.com.digitalspider.cube.bean;
+
+/**
+ * The maximum quantity of a single {@link CubeItem} that fits within a cube space, and the {@link CubeSpace} holding them.
+ */
+public class CubeCapacity {
+
+	private int quantity;
+	private CubeSpace cubeSpace;
+
+	public CubeCapacity(int quantity, CubeSpace cubeSpace) {
+		this.quantity = quantity;
+		this.cubeSpace = cubeSpace;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"[qty="+quantity+"] "+cubeSpace;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	public CubeSpace getCubeSpace() {
+		return cubeSpace;
+	}
+}
@@ -31,6 +31,13 @@ public class CubeItem implements Comparable<CubeItem> {
 	 */
 	public int quantity=1;
 
+	/**
+	 * Instantiate a new CubeItem with no id, used when reading json input. Length,width,height and weight all 0. Quantity=1.
+	 */
+	public CubeItem() {
+		this(null);
+	}
+
 	/**
 	 * Instantiate a new CubeItem with the given id. Length,width,height and weight all 0. Quantity=1.
 	 */
@@ -103,6 +110,14 @@ public class CubeItem implements Comparable<CubeItem> {
 		}
 	}
 
+	/**
+	 * Return a copy of this cube item, with the same id, dimensions, weight and quantity.
+	 * @return
+	 */
+	public CubeItem copy() {
+		return new CubeItem(id, length, width, height, weight, quantity);
+	}
+
 	/**
 	 * Rotate this item so that width becomes height, height becomes length, and length becomes width
 	 * @return
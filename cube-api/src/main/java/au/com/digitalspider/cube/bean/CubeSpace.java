@@ -5,13 +5,15 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 public class CubeSpace {
 	public double x;
 	public double y;
 	public double z;
 	public Orientation orientation;
+	/**
+	 * The length, width, height and weight used by the cubes directly in this cube space. Call {@link #invalidateTotals()} after changing them.
+	 */
 	public double length;
 	public double width;
 	public double height;
@@ -22,14 +24,25 @@ public class CubeSpace {
 	public double maxWeight;
 	public boolean initialised = false;
 	/**
-	 * The childCubeSpaceList is constantly being rewritten as recursive calculations are processed, and as such requires a "thread-safe" implementation
+	 * The child cube spaces, in the order they were added. Packing is done in the CubingService's own working tree, and
+	 * the CubeSpace tree is only built from it once complete, so this list is never changed while being iterated.
+	 * A CubeSpace tree is built by a single thread, and should not be changed once returned.
 	 */
-	public List<CubeSpace> childCubeSpaceList = new CopyOnWriteArrayList<CubeSpace>();
+	public List<CubeSpace> childCubeSpaceList = new ArrayList<CubeSpace>();
 	public List<CubeItem> cubeList = new ArrayList<CubeItem>();
 
 	private CubeSpace parent = null;
 	private CubeSpace root;
 
+	/**
+	 * Cached totals of this cube space and all its children. Recalculated on demand after {@link #invalidateTotals()}.
+	 */
+	private boolean totalsValid = false;
+	private double totalLength;
+	private double totalWidth;
+	private double totalHeight;
+	private double totalWeight;
+
 	public CubeSpace(CubeSpace parent) {
 		this.parent = parent;
 		if (root==null) {
@@ -47,6 +60,7 @@ public class CubeSpace {
 				orientation = Orientation.HORIZONTAL;
 			}
 			parent.childCubeSpaceList.add(this);
+			parent.invalidateTotals();
 		}
 	}
 
@@ -87,88 +101,109 @@ public class CubeSpace {
 	}
 
 	/**
-	 * Recursively find the width of this cube space
+	 * Mark the cached totals of this cube space, and all its parents, as needing to be recalculated.
+	 * Must be called whenever the length, width, height or weight, or the childCubeSpaceList, is changed.
 	 */
-	public double getTotalWidth() {
-		double value = this.width;
-		// if recursive
-		if (childCubeSpaceList.size()>0) {
-			double subValue = 0;
-			for (CubeSpace cubeSpace : childCubeSpaceList) {
-				subValue = cubeSpace.getTotalWidth();
-				if (subValue>value) {
-					value = subValue;
-				}
-			}
+	public void invalidateTotals() {
+		CubeSpace cubeSpace = this;
+		// If a cube space is already invalid, then so are all of its parents
+		while (cubeSpace!=null && cubeSpace.totalsValid) {
+			cubeSpace.totalsValid = false;
+			cubeSpace = cubeSpace.parent;
 		}
-		return value;
 	}
 
 	/**
-	 * Recursively find the length of this cube space
+	 * Recalculate the cached totals from this cube space's own dimensions and the cached totals of its children.
+	 * Only children which have been invalidated are recalculated, so this does not walk the whole tree.
 	 */
-	public double getTotalLength() {
-		double value = this.length;
+	private void calculateTotals() {
+		double totalLength = this.length;
+		double totalWidth = this.width;
+		double totalHeight = this.height;
+		double totalWeight = 0;
 		// if recursive
 		if (childCubeSpaceList.size()>0) {
 			double subValue = 0;
 			for (CubeSpace cubeSpace : childCubeSpaceList) {
-				subValue = cubeSpace.getTotalLength();
+				if (!cubeSpace.totalsValid) {
+					cubeSpace.calculateTotals();
+				}
+				// width is the greatest width
+				if (cubeSpace.totalWidth>totalWidth) {
+					totalWidth = cubeSpace.totalWidth;
+				}
+				subValue = cubeSpace.totalLength;
 				if (cubeSpace.orientation==Orientation.VERTICAL) {
 					// If vertical find the greatest length
-					if (subValue>value) {
-						value = subValue;
+					if (subValue>totalLength) {
+						totalLength = subValue;
 					}
 				} else {
 					// else amongst the horizontal add all lengths together
-					value += subValue;
+					totalLength += subValue;
 				}
-			}
-		}
-		return value;
-	}
-
-	/**
-	 * Recursively find the height of this cube space
-	 */
-	public double getTotalHeight() {
-		double value = this.height;
-		if (value>0) {
-			return value;
-		}
-		// if recursive
-		if (childCubeSpaceList.size()>0) {
-			double subValue = 0;
-			for (CubeSpace cubeSpace : childCubeSpaceList) {
-				subValue = cubeSpace.getTotalHeight();
-				if (subValue>0) {
+				// height is only calculated from children if this cube space has no height of its own
+				subValue = cubeSpace.totalHeight;
+				if (this.height<=0 && subValue>0) {
 					if (cubeSpace.orientation==Orientation.VERTICAL) {
 						// if vertical add all heights together
-						value += subValue;
+						totalHeight += subValue;
 					} else {
 						// else find the greatest height amongst the horizontal
-						if (subValue>value) {
-							value = subValue;
+						if (subValue>totalHeight) {
+							totalHeight = subValue;
 						}
 					}
 				}
+				totalWeight += cubeSpace.totalWeight;
 			}
 		}
-		return value;
+		this.totalLength = totalLength;
+		this.totalWidth = totalWidth;
+		this.totalHeight = totalHeight;
+		this.totalWeight = totalWeight;
+		this.totalsValid = true;
+	}
+
+	/**
+	 * Find the width of this cube space, including all child cube spaces
+	 */
+	public double getTotalWidth() {
+		if (!totalsValid) {
+			calculateTotals();
+		}
+		return totalWidth;
+	}
+
+	/**
+	 * Find the length of this cube space, including all child cube spaces
+	 */
+	public double getTotalLength() {
+		if (!totalsValid) {
+			calculateTotals();
+		}
+		return totalLength;
 	}
 
 	/**
-	 * Recursively find the weight of this cube space
+	 * Find the height of this cube space, including all child cube spaces
+	 */
+	public double getTotalHeight() {
+		if (!totalsValid) {
+			calculateTotals();
+		}
+		return totalHeight;
+	}
+
+	/**
+	 * Find the weight of this cube space, including all child cube spaces
 	 */
 	public double getTotalWeight() {
-		double value = 0;
-		// if recursive
-		if (childCubeSpaceList.size()>0) {
-			for (CubeSpace cubeSpace : childCubeSpaceList) {
-				value += cubeSpace.getTotalWeight();
-			}
+		if (!totalsValid) {
+			calculateTotals();
 		}
-		return value;
+		return totalWeight;
 	}
 
 	/**
@@ -231,6 +266,10 @@ public class CubeSpace {
 		return volumePercent;
 	}
 
+	/**
+	 * Raise the maxHeight of this cube space and all its children. The max values are not part of the cached totals,
+	 * so the totals remain valid.
+	 */
 	public void raiseMaxHeight(double newHeight) {
 		maxHeight=newHeight;
 		// if recursive
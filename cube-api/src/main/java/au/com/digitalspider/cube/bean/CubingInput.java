@@ -11,14 +11,26 @@ import au.com.digitalspider.cube.service.CubingService;
  *
  * The format of the input is:
  * <code>
- * {cubeSpaces: [{weight:0.281,length:17.8,width:11.1,height:3.2}], cubeItems: [{id:25845880,weight:0.500,length:24.4,width:16.8,height:2.0,quantity:1},{id:29854048,weight:0.028,length:22.9,width:15.2,height:2.5,quantity:3}]}
+ * {id: "order1", cubeSpaces: [{weight:0.281,length:17.8,width:11.1,height:3.2}], cubeItems: [{id:25845880,weight:0.500,length:24.4,width:16.8,height:2.0,quantity:1},{id:29854048,weight:0.028,length:22.9,width:15.2,height:2.5,quantity:3}]}
  * </code>
  */
 public class CubingInput {
 
+	private String id;
 	private List<CubeItem> cubeSpaces;
 	private List<CubeItem> cubeItems;
 
+	/**
+	 * An optional id, returned with the {@link CubingOutput} to match the results of a batch with their inputs
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
 	public List<CubeItem> getCubeItems() {
 		return cubeItems;
 	}
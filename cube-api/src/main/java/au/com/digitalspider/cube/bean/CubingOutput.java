@@ -1,15 +1,46 @@
 package au.com.digitalspider.cube.bean;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 public class CubingOutput {
 
+	private String id;
 	private CubeSpace cubeSpace;
-	
+	private String error;
+
+	/**
+	 * The id of the {@link CubingInput}, only set for the results of a batch
+	 */
+	@JsonInclude(Include.NON_NULL)
+	public String getId() {
+		return id;
+	}
+
+	public CubingOutput setId(String id) {
+		this.id = id;
+		return this;
+	}
+
 	public String getResult() {
-		return cubeSpace.toString();
+		return cubeSpace==null ? null : cubeSpace.toString();
 	}
 
 	public CubingOutput setCubeSpace(CubeSpace cubeSpace) {
 		this.cubeSpace = cubeSpace;
 		return this;
 	}
+
+	/**
+	 * The reason no result was found, only set for the results of a batch
+	 */
+	@JsonInclude(Include.NON_NULL)
+	public String getError() {
+		return error;
+	}
+
+	public CubingOutput setError(String error) {
+		this.error = error;
+		return this;
+	}
 }
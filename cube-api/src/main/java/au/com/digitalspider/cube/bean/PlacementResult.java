@@ -0,0 +1,17 @@
+package au.com.digitalspider.cube.bean;
+
+/**
+ * The outcome of trying to place a {@link CubeItem} into a {@link CubeSpace}.
+ * Used instead of exceptions to signal that a cube does not fit, as this happens many times per calculation.
+ */
+public enum PlacementResult {
+	FITTED(true), FULL(false), EXCEEDS_LENGTH(false), EXCEEDS_WIDTH(false), EXCEEDS_HEIGHT(false), EXCEEDS_LENGTH_AND_WIDTH(false), EXCEEDS_WEIGHT(false), EXCEEDS_VOLUME(false), NO_SPACE(false);
+
+	private boolean fitted;
+	private PlacementResult(boolean fitted) {
+		this.fitted = fitted;
+	}
+	public boolean isFitted() {
+		return fitted;
+	}
+}
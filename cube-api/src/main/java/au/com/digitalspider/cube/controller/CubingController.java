@@ -1,8 +1,12 @@
 package au.com.digitalspider.cube.controller;
 
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
@@ -10,6 +14,8 @@ import javax.validation.Valid;
 import org.apache.log4j.Logger;
 import org.omg.CORBA.portable.ApplicationException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.Errors;
@@ -18,13 +24,21 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
+import au.com.digitalspider.cube.bean.CubeCapacity;
 import au.com.digitalspider.cube.bean.CubeItem;
 import au.com.digitalspider.cube.bean.CubeSpace;
 import au.com.digitalspider.cube.bean.CubingInput;
 import au.com.digitalspider.cube.bean.CubingOutput;
 import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.BatchCubingService;
+import au.com.digitalspider.cube.service.BinPackingService;
+import au.com.digitalspider.cube.service.CapacityService;
 import au.com.digitalspider.cube.service.CubingService;
+import au.com.digitalspider.cube.service.PackingStrategy;
+import au.com.digitalspider.cube.service.PackingStrategyService;
 import au.com.digitalspider.cube.service.SlottingService;
 
 @RequestMapping("/cube")
@@ -37,6 +51,20 @@ public class CubingController {
 	private CubingService cubingService;
 	@Autowired
 	private SlottingService slottingService;
+	@Autowired
+	private CapacityService capacityService;
+	@Autowired
+	private BinPackingService binPackingService;
+	@Autowired
+	private BatchCubingService batchCubingService;
+	@Autowired
+	private PackingStrategyService strategyService;
+
+	/**
+	 * The time allowed for a batch, set by the property "cube.batch.timeout" in milliseconds. Defaults to 10 minutes.
+	 */
+	@Value("${cube.batch.timeout:600000}")
+	private long batchTimeout = 600000;
 
 	@GetMapping("/")
 	public String index() {
@@ -113,8 +141,8 @@ public class CubingController {
 	 * 	<li>constraints: maxLength=25, maxWidth=25, maxHeight=3.5 and weight=7.0</li>
 	 *  <li>product: maxLength=4.5, maxWidth=2.1, maxHeight=1.0 and weight=50.0</li>
 	 * </ul>
-	 * The dimensions of the product are converted into {@link CubeItems} 
-	 * and processed using {@link CubingService#calculateCubeSpace}
+	 * The dimensions of the product are converted into a {@link CubeItem}
+	 * and processed using {@link CapacityService#findMaxQuantity}
 	 *
 	 * @param constraints json input with format {weight:0.281,length:17.8,width:11.1,height:3.2}
 	 * @param cubes json input with format [{id:25845880,weight:0.500,length:24.4,width:16.8,height:2.0,quantity:1},{id:29854048,weight:0.028,length:22.9,width:15.2,height:2.5,quantity:3}]
@@ -129,36 +157,19 @@ public class CubingController {
 
 		LOG.info(MessageFormat.format("Test cubing with length={0},width={1},height={2},weight={3}, and length={4},width={5},height={6},weight={7}", maxLength,maxWidth,maxHeight,maxWeight, itemLength,itemWidth,itemHeight,itemWeight));
 
-		// Create skeleton cubeItems
-		List<CubeItem> cubeItemList = new ArrayList<CubeItem>();
-		CubeItem cubeItem = new CubeItem("single");
-		cubeItem.length = itemLength;
-		cubeItem.width = itemWidth;
-		cubeItem.height = itemHeight;
-		cubeItem.quantity = 1;
-		int calcQuantity = (int)(maxWidth/itemWidth)*(int)(maxLength/itemLength)*(int)(maxHeight/maxHeight);
-		int calcQuantityForWeight = (int)(maxWeight/itemWeight);
-		calcQuantity = Math.min(calcQuantity, calcQuantityForWeight);
-		if (calcQuantity>1) {
-			cubeItem.quantity=calcQuantity;
-		}
-		cubeItemList.add(cubeItem);
+		// Create skeleton cubeItem
+		CubeItem cubeItem = new CubeItem("single", itemLength, itemWidth, itemHeight, itemWeight);
 
 		try {
-			LOG.info("cubeItems="+cubeItemList);
-			LOG.info("cubingService.calculateCubeSpace() START");
-			CubeSpace cubeSpace = null;
-			while (true) {
-				try {
-					cubeSpace = cubingService.calculateCubeSpace(cubeItemList, maxLength, maxWidth, maxHeight, maxWeight, Orientation.HORIZONTAL);
-					cubeItem.quantity+=1;
-				} catch (Exception e) {
-					break;
-				}
+			LOG.info("cubeItem="+cubeItem);
+			LOG.info("capacityService.findMaxQuantity() START");
+			CubeCapacity capacity = capacityService.findMaxQuantity(cubeItem, maxLength, maxWidth, maxHeight, maxWeight, Orientation.HORIZONTAL);
+			int resultQuantity = capacity.getQuantity();
+			CubeSpace cubeSpace = capacity.getCubeSpace();
+			LOG.info("capacityService.findMaxQuantity() DONE. resultQuantity="+resultQuantity);
+			if (cubeSpace!=null) {
+				result.setResult(new CubingOutput().setCubeSpace(cubeSpace));
 			}
-			int resultQuantity = cubeItem.quantity - 1;
-			LOG.info("cubingService.calculateCubeSpace() DONE. resultQuantity="+resultQuantity);
-			result.setResult(new CubingOutput().setCubeSpace(cubeSpace));
 			result.setMsg("success. qty="+resultQuantity+" space=" + cubeSpace);
 		} catch (Exception e) {
 			LOG.error(e, e);
@@ -259,6 +270,147 @@ public class CubingController {
 	}	
 	
 
+	/**
+	 * Splits the given items across the fewest of the given dimensions, for when they do not all fit into one.
+	 *
+	 * Information is provided by url parameters in the format: /slot/multi?improve={improvementRounds}
+	 * Example:
+	 * <ul>
+	 * 	<li>http://localhost:8080/cube/slot/multi?improve=3</li>
+	 * </ul>
+	 * The above example processes:
+	 * <ul>
+	 * 	<li>constraints: provided using json data, each of which can be used more than once</li>
+	 *  <li>products: provided using json data</li>
+	 *  <li>improve: up to 3 attempts to empty the least full space into the others, defaults to 0</li>
+	 * </ul>
+	 * The dimensions of the product are converted into {@link CubeItems} 
+	 * and processed using {@link BinPackingService#packCubeSpaces(List, List, int)}
+	 *
+	 * @param constraints json input with format {weight:0.281,length:17.8,width:11.1,height:3.2}
+	 * @param cubes json input with format [{id:25845880,weight:0.500,length:24.4,width:16.8,height:2.0,quantity:1},{id:29854048,weight:0.028,length:22.9,width:15.2,height:2.5,quantity:3}]
+	 * @return The list of {@link CubingResult} as a json response with success, and a message. Format is {"success":true,"message":"result found: 2 cube spaces","resultList":[...]}
+	 * @throws ApplicationException
+	 */
+	@RequestMapping(value = "/slot/multi", method = { RequestMethod.GET, RequestMethod.POST })
+	public ResponseEntity<?> slotMulti(HttpServletRequest request, @Valid @RequestBody CubingInput cubingInput, Errors errors,
+			@RequestParam(value = "improve", defaultValue = "0") int improvementRounds) {
+		AjaxResponseBody<CubingOutput> result = new AjaxResponseBody<>();
+
+		LOG.info(MessageFormat.format("Multi slotting with spaces={0},items={1}", cubingInput.getCubeSpaces(),cubingInput.getCubeItems()));
+		try {
+			LOG.info("binPackingService.packCubeSpaces() START");
+			List<CubeSpace> cubeSpaces = binPackingService.packCubeSpaces(cubingInput.getCubeSpaces(), cubingInput.getCubeItems(), improvementRounds);
+			LOG.info("binPackingService.packCubeSpaces() DONE");
+			List<CubingOutput> outputList = new ArrayList<CubingOutput>(cubeSpaces.size());
+			for (CubeSpace cubeSpace : cubeSpaces) {
+				outputList.add(new CubingOutput().setCubeSpace(cubeSpace));
+			}
+			result.setResultList(outputList);
+			result.setMsg("result found: " + cubeSpaces.size() + " cube spaces");
+		} catch (Exception e) {
+			LOG.error(e, e);
+			result.setMsg(e.getMessage());
+			return ResponseEntity.badRequest().body(result);
+		}
+		return ResponseEntity.ok(result);
+	}
+
+	/**
+	 * Finds the smallest dimension within which the given items fit, for each of many orders in a single request.
+	 *
+	 * Information is provided by url parameters in the format: /slot/batch?ordered={ordered}
+	 * Example:
+	 * <ul>
+	 * 	<li>http://localhost:8080/cube/slot/batch?ordered=false</li>
+	 * </ul>
+	 * The above example processes:
+	 * <ul>
+	 * 	<li>orders: a json array of {@link CubingInput}, each with an optional id, constraints and products</li>
+	 *  <li>ordered: false to return each result as soon as it is found, defaults to true to return them in the order of the input</li>
+	 * </ul>
+	 * The orders are processed in parallel using {@link BatchCubingService#slotAll(List, boolean, BatchCubingService.ResultListener)}
+	 *
+	 * @param orders json input with format [{id:"order1",cubeSpaces:[{weight:0.281,length:17.8,width:11.1,height:3.2}],cubeItems:[{id:25845880,weight:0.500,length:24.4,width:16.8,height:2.0,quantity:1}]}]
+	 * @return The {@link CubingOutput} of each order streamed as a line of json. Format is {"id":"order1","result":"CubeSpace[0.0,0.0,0.0] spaces=132 cubes=2 ..."} or {"id":"order1","error":"..."}
+	 */
+	@RequestMapping(value = "/slot/batch", method = { RequestMethod.POST })
+	public ResponseBodyEmitter slotBatch(HttpServletRequest request, @RequestBody List<CubingInput> cubingInputs,
+			@RequestParam(value = "ordered", defaultValue = "true") boolean ordered) {
+		final ResponseBodyEmitter emitter = new ResponseBodyEmitter(batchTimeout);
+
+		LOG.info(MessageFormat.format("Batch slotting with orders={0},ordered={1}", cubingInputs.size(), ordered));
+		// Set when a result can not be sent, or the emitter times out or completes, which happen on other threads
+		final AtomicBoolean disconnected = new AtomicBoolean();
+		Runnable disconnect = new Runnable() {
+			@Override
+			public void run() {
+				disconnected.set(true);
+			}
+		};
+		emitter.onTimeout(disconnect);
+		emitter.onCompletion(disconnect);
+		BatchCubingService.ResultListener listener = new BatchCubingService.ResultListener() {
+			@Override
+			public void onResult(int index, CubingOutput output) {
+				if (disconnected.get()) {
+					return;
+				}
+				try {
+					emitter.send(output, MediaType.APPLICATION_JSON);
+					emitter.send("\n", MediaType.TEXT_PLAIN);
+				} catch (IOException | IllegalStateException e) {
+					// IllegalStateException once the emitter has timed out or completed
+					LOG.warn("Could not send batch result "+output.getId()+". ERROR: "+e.getMessage());
+					disconnected.set(true);
+				}
+			}
+
+			@Override
+			public void onComplete() {
+				LOG.info("Batch slotting DONE");
+				if (!disconnected.get()) {
+					emitter.complete();
+				}
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return disconnected.get();
+			}
+		};
+		batchCubingService.slotAll(cubingInputs, ordered, listener);
+		return emitter;
+	}
+
+	/**
+	 * Lists the packing strategies, which can be chosen by the parameter "strategy", with their cost and quality.
+	 *
+	 * Information is provided by url parameters in the format: /strategies?cubes={cubeCount}
+	 * Example:
+	 * <ul>
+	 * 	<li>http://localhost:8080/cube/strategies?cubes=500</li>
+	 * </ul>
+	 *
+	 * @param cubeCount the number of cubes to estimate the time of packing for, defaults to 100
+	 * @return The strategies as a json response. Format is {"msg":"strategy for 500 cubes: extremePoint","resultList":[{"name":"tree","estimatedMillis":0.52,"expectedQuality":60.0},...]}
+	 */
+	@GetMapping("/strategies")
+	public ResponseEntity<?> strategies(@RequestParam(value = "cubes", defaultValue = "100") int cubeCount) {
+		AjaxResponseBody<Map<String, Object>> result = new AjaxResponseBody<>();
+		List<Map<String, Object>> resultList = new ArrayList<Map<String, Object>>();
+		for (PackingStrategy strategy : strategyService.getStrategies()) {
+			Map<String, Object> description = new LinkedHashMap<String, Object>();
+			description.put("name", strategy.getName());
+			description.put("estimatedMillis", strategyService.getEstimatedNanos(strategy, cubeCount)/1000000.0);
+			description.put("expectedQuality", strategy.getExpectedQuality());
+			resultList.add(description);
+		}
+		result.setResultList(resultList);
+		result.setMsg("strategy for "+cubeCount+" cubes: "+strategyService.selectStrategy(cubeCount).getName());
+		return ResponseEntity.ok(result);
+	}
+
 	public void setCubingService(CubingService cubingService) {
 		this.cubingService = cubingService;
 	}
@@ -266,4 +418,20 @@ public class CubingController {
 	public void setSlottingService(SlottingService slottingService) {
 		this.slottingService = slottingService;
 	}
+
+	public void setCapacityService(CapacityService capacityService) {
+		this.capacityService = capacityService;
+	}
+
+	public void setBinPackingService(BinPackingService binPackingService) {
+		this.binPackingService = binPackingService;
+	}
+
+	public void setBatchCubingService(BatchCubingService batchCubingService) {
+		this.batchCubingService = batchCubingService;
+	}
+
+	public void setStrategyService(PackingStrategyService strategyService) {
+		this.strategyService = strategyService;
+	}
 }
@@ -0,0 +1,77 @@
+package au.com.digitalspider.cube.controller;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import au.com.digitalspider.cube.service.PackingStrategyService;
+import au.com.digitalspider.cube.service.impl.PackingStrategyRequest;
+
+/**
+ * Chooses the packing strategy of a single request, by the parameter "strategy" or the header "X-Cube-Strategy", e.g.
+ * "strategy=shelf", or "strategy=auto" to choose by the budget. The budget is set by the parameter "budget" or the
+ * header "X-Cube-Budget" in milliseconds, and on its own also chooses by the budget. Requests without either use the
+ * defaults of the {@link PackingStrategyService}. An unknown strategy or invalid budget is a bad request.
+ */
+@Component
+public class PackingStrategyFilter extends OncePerRequestFilter {
+
+	public static final String STRATEGY_PARAMETER = "strategy";
+	public static final String STRATEGY_HEADER = "X-Cube-Strategy";
+	public static final String BUDGET_PARAMETER = "budget";
+	public static final String BUDGET_HEADER = "X-Cube-Budget";
+
+	@Autowired
+	private PackingStrategyService strategyService;
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+		String strategy = getValue(request, STRATEGY_HEADER, STRATEGY_PARAMETER);
+		String budget = getValue(request, BUDGET_HEADER, BUDGET_PARAMETER);
+		if (strategy==null && budget==null) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		long budgetMillis = 0;
+		try {
+			if (strategy!=null && !PackingStrategyService.AUTO.equals(strategy)) {
+				strategyService.getStrategy(strategy);
+			}
+			if (budget!=null) {
+				budgetMillis = Long.parseLong(budget);
+				if (budgetMillis<=0) {
+					throw new IllegalArgumentException("The packing budget must be positive: "+budget);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			// Includes the NumberFormatException of an invalid budget
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		PackingStrategyRequest.setRequested(new PackingStrategyRequest(strategy, budgetMillis));
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			PackingStrategyRequest.setRequested(null);
+		}
+	}
+
+	private String getValue(HttpServletRequest request, String header, String parameter) {
+		String value = request.getHeader(header);
+		if (value==null) {
+			value = request.getParameter(parameter);
+		}
+		return value;
+	}
+
+	public void setStrategyService(PackingStrategyService strategyService) {
+		this.strategyService = strategyService;
+	}
+}
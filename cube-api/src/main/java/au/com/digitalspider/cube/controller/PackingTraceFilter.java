@@ -0,0 +1,42 @@
+package au.com.digitalspider.cube.controller;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import au.com.digitalspider.cube.service.impl.PackingTrace;
+
+/**
+ * Traces the packing of a single request, when the request has the parameter "trace=true" or the header "X-Cube-Trace: true".
+ * The trace is logged by {@link PackingTrace}. Requests without either use the sample rate, "cube.trace.sampleRate".
+ */
+@Component
+public class PackingTraceFilter extends OncePerRequestFilter {
+
+	public static final String TRACE_PARAMETER = "trace";
+	public static final String TRACE_HEADER = "X-Cube-Trace";
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+		String trace = request.getHeader(TRACE_HEADER);
+		if (trace==null) {
+			trace = request.getParameter(TRACE_PARAMETER);
+		}
+		if (trace==null) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		PackingTrace.setRequested(Boolean.valueOf(trace));
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			PackingTrace.setRequested(null);
+		}
+	}
+}
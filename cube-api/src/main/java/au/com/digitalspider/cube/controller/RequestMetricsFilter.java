@@ -0,0 +1,68 @@
+package au.com.digitalspider.cube.controller;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Records the time taken by each request in a timer per endpoint, named by the request mapping of the endpoint,
+ * e.g. "request.cube.slot.multi" for "/cube/slot/multi". The timers include the percentiles of the latency, and
+ * are shown by the actuator "/metrics" endpoint.
+ *
+ * Requests which are completed asynchronously, such as "/cube/slot/batch", are not recorded, as only the time to
+ * start them is known here.
+ */
+@Component
+public class RequestMetricsFilter extends OncePerRequestFilter {
+
+	public static final String UNMAPPED = "unmapped";
+
+	@Autowired
+	private MetricRegistry metricRegistry;
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+		long startTime = System.nanoTime();
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			if (!request.isAsyncStarted()) {
+				metricRegistry.timer(getTimerName(request)).update(System.nanoTime()-startTime, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Name the timer by the request mapping, without the path variable braces, so all the requests to an endpoint
+	 * share a timer.
+	 */
+	String getTimerName(HttpServletRequest request) {
+		Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		if (pattern==null) {
+			return "request."+UNMAPPED;
+		}
+		StringBuilder name = new StringBuilder("request");
+		for (String part : pattern.toString().split("/")) {
+			part = part.replace("{", "").replace("}", "");
+			if (!part.isEmpty()) {
+				name.append('.').append(part);
+			}
+		}
+		return name.toString();
+	}
+
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+	}
+}
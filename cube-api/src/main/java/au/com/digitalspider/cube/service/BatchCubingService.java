@@ -0,0 +1,49 @@
+package au.com.digitalspider.cube.service;
+
+import java.util.List;
+
+import au.com.digitalspider.cube.bean.CubingInput;
+import au.com.digitalspider.cube.bean.CubingOutput;
+
+public interface BatchCubingService {
+
+	/**
+	 * Receives the results of {@link BatchCubingService#slotAll(List, boolean, ResultListener)}.
+	 * Calls are never concurrent, so the listener does not need to be thread safe.
+	 */
+	public interface ResultListener {
+
+		/**
+		 * Called once for each input, with the CubingOutput holding either the result or the error
+		 *
+		 * @param index the index of the input
+		 * @param output the output, with the id of the input, or the index if the input has no id
+		 */
+		public void onResult(int index, CubingOutput output);
+
+		/**
+		 * Called once after the last result
+		 */
+		public void onComplete();
+
+		/**
+		 * Checked before each input is slotted. Once true, the inputs not yet slotted are skipped, and given the error
+		 * {@link au.com.digitalspider.cube.service.impl.BatchCubingServiceImpl#CANCELLED}.
+		 *
+		 * @return true if the results are no longer wanted, e.g. the client has disconnected
+		 */
+		public boolean isCancelled();
+	}
+
+	/**
+	 * Find the smallest cube space for each of the inputs using {@link SlottingService#findCubeSpace(List, List)},
+	 * processing the inputs in parallel. Returns straight away, with the results given to the listener as they are found.
+	 * When many inputs are waiting, the inputs are started as threads become free, rather than rejected.
+	 *
+	 * @param inputs the cubeSpaces and cubeItems of each order
+	 * @param ordered true to give the results in the order of the inputs, false to give them as soon as they are found
+	 * @param listener receives the results
+	 */
+	public void slotAll(List<CubingInput> inputs, boolean ordered, ResultListener listener);
+
+}
@@ -0,0 +1,23 @@
+package au.com.digitalspider.cube.service;
+
+import java.util.List;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+
+public interface BinPackingService {
+
+	/**
+	 * Distribute the items across as few cube spaces as possible, for when they do not all fit into one.
+	 * Items are added largest first, each into the first cube space with room for it, splitting the quantity of an
+	 * item across cube spaces where needed. Each cube space is then reduced to the smallest space that still fits its items.
+	 *
+	 * @param spaces the cubeSpaces available, each of which can be used any number of times
+	 * @param items the items to pack
+	 * @param improvementRounds the maximum number of attempts to empty the least full cube space into the others, 0 for none
+	 * @return a {@link CubeSpace} for each cube space used
+	 * @throws Exception if an item does not fit into any of the cube spaces
+	 */
+	public List<CubeSpace> packCubeSpaces(List<CubeItem> spaces, List<CubeItem> items, int improvementRounds) throws Exception;
+
+}
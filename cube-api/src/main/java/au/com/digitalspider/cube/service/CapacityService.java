@@ -0,0 +1,38 @@
+package au.com.digitalspider.cube.service;
+
+import au.com.digitalspider.cube.bean.CubeCapacity;
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.Orientation;
+
+public interface CapacityService {
+
+	/**
+	 * Calculate how many of the given cubeItem fit within the constraints, without packing them. Each orientation
+	 * allowed is tried, with all cubes in a grid of the same orientation, and the best is returned.
+	 *
+	 * @param cube the {@link CubeItem} to calculate, the quantity is ignored
+	 * @param maxLength the maximum length constraint
+	 * @param maxWidth the maximum width constraint
+	 * @param maxHeight the maximum height constraint
+	 * @param maxWeight the maximum weight constraint, ignored if 0
+	 * @param orientation the orientation of the cubeItem, 0=any, 1=vertical, 2=horizontal (default)
+	 * @return the number of cubes that fit
+	 */
+	public int calculateMaxQuantity(CubeItem cube, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation);
+
+	/**
+	 * Find the maximum quantity of the given cubeItem that can be packed by the {@link CubingService}. Starts from
+	 * {@link #calculateMaxQuantity}, and if the cubingService cannot pack that many, binary searches for the largest
+	 * quantity that can be packed.
+	 *
+	 * @param cube the {@link CubeItem} to calculate, the quantity is ignored
+	 * @param maxLength the maximum length constraint
+	 * @param maxWidth the maximum width constraint
+	 * @param maxHeight the maximum height constraint
+	 * @param maxWeight the maximum weight constraint, ignored if 0
+	 * @param orientation the orientation of the cubeItem, 0=any, 1=vertical, 2=horizontal (default)
+	 * @return the {@link CubeCapacity} with the quantity, and the packed {@link CubeSpace} or null if none fit
+	 */
+	public CubeCapacity findMaxQuantity(CubeItem cube, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation);
+
+}
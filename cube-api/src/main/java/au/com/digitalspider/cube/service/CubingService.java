@@ -6,6 +6,10 @@ import au.com.digitalspider.cube.bean.CubeItem;
 import au.com.digitalspider.cube.bean.CubeSpace;
 import au.com.digitalspider.cube.bean.Orientation;
 
+/**
+ * Implementations must not modify the cubeList or its {@link CubeItem}s, and must be safe for concurrent use,
+ * so the same items can be cubed into many cube spaces at once.
+ */
 public interface CubingService {
 
 	/**
@@ -16,7 +20,7 @@ public interface CubingService {
 	/**
 	 * Calculates the optimal cube space required for a list of cubeItems
 	 *
-	 * @param cubeList list of {@link CubeItem} items to calculate
+	 * @param cubeList list of {@link CubeItem} items to calculate, which is not modified
 	 * @param maxLength the maximum length constraint
 	 * @param maxWidth the maximum width constraint
 	 * @param maxHeight the maximum height constraint
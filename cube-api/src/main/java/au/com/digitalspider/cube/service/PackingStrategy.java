@@ -0,0 +1,30 @@
+package au.com.digitalspider.cube.service;
+
+/**
+ * A packing engine, which can be chosen by name for each request, or picked by the {@link PackingStrategyService}
+ * to fit a latency budget. Each strategy reports its own cost and quality, so they can be compared before packing.
+ *
+ * Strategies follow the same rules as any {@link CubingService}: they must not modify the cubeList, and must be safe
+ * for concurrent use.
+ */
+public interface PackingStrategy extends CubingService {
+
+	/**
+	 * @return the name used to choose this strategy, e.g. "tree"
+	 */
+	public String getName();
+
+	/**
+	 * Estimates the time to pack the given number of cubes, before any calibration by the {@link PackingStrategyService}
+	 *
+	 * @param cubeCount the total quantity of the cubes
+	 * @return the estimated time in nanoseconds
+	 */
+	public long estimateNanos(int cubeCount);
+
+	/**
+	 * @return the expected volume percent of the packings, as given by {@link au.com.digitalspider.cube.bean.CubeSpace#getVolumePercent()}
+	 */
+	public double getExpectedQuality();
+
+}
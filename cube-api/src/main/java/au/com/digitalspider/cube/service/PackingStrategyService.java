@@ -0,0 +1,59 @@
+package au.com.digitalspider.cube.service;
+
+import java.util.List;
+
+/**
+ * Holds the available {@link PackingStrategy}s, and chooses which one packs each calculation. A strategy is chosen
+ * by name, or by {@link #AUTO} to pick the best quality strategy expected to finish within a latency budget.
+ */
+public interface PackingStrategyService {
+
+	/**
+	 * The strategy name which picks the strategy by the latency budget
+	 */
+	public static final String AUTO = "auto";
+
+	/**
+	 * @return the available strategies
+	 */
+	public List<PackingStrategy> getStrategies();
+
+	/**
+	 * @param name the name of the strategy
+	 * @return the strategy
+	 * @throws IllegalArgumentException if there is no strategy with the name
+	 */
+	public PackingStrategy getStrategy(String name);
+
+	/**
+	 * Choose the strategy for the current calculation, by the strategy or budget requested for the current thread, or
+	 * else the defaults.
+	 *
+	 * @param cubeCount the total quantity of the cubes to pack
+	 * @return the strategy to pack with
+	 */
+	public PackingStrategy selectStrategy(int cubeCount);
+
+	/**
+	 * Choose the best quality strategy expected to pack the cubes within the budget. If no strategy is expected to,
+	 * the fastest is chosen.
+	 *
+	 * @param cubeCount the total quantity of the cubes to pack
+	 * @param budgetMillis the time allowed, or 0 for no limit
+	 * @return the strategy to pack with
+	 */
+	public PackingStrategy selectStrategy(int cubeCount, long budgetMillis);
+
+	/**
+	 * The estimated time for the strategy to pack the cubes, calibrated by the times recorded by {@link #recordTime(PackingStrategy, int, long)}
+	 *
+	 * @return the estimated time in nanoseconds
+	 */
+	public long getEstimatedNanos(PackingStrategy strategy, int cubeCount);
+
+	/**
+	 * Record the time a strategy took to pack the cubes, to calibrate its estimates
+	 */
+	public void recordTime(PackingStrategy strategy, int cubeCount, long nanos);
+
+}
@@ -5,14 +5,16 @@ import java.util.List;
 import au.com.digitalspider.cube.bean.CubeItem;
 import au.com.digitalspider.cube.bean.CubeSpace;
 
-
+/**
+ * Implementations must not modify the spaces, the items, or the {@link CubeItem}s in them, and must be safe for concurrent use.
+ */
 public interface SlottingService {
 
 	/**
 	 * Find the smallest slot in the cubeSpace, which can take the given cubeItems.
 	 * 
-	 * @param spaces the cubeSpaces available
-	 * @param items the items to slot
+	 * @param spaces the cubeSpaces available, which are not modified
+	 * @param items the items to slot, which are not modified
 	 * @return the smallest CubeSpace that can take all the cubeItems
 	 * @throws Exception
 	 */
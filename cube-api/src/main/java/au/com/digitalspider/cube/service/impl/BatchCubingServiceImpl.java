@@ -0,0 +1,271 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.CubingInput;
+import au.com.digitalspider.cube.bean.CubingOutput;
+import au.com.digitalspider.cube.service.BatchCubingService;
+import au.com.digitalspider.cube.service.SlottingService;
+
+@Service
+public class BatchCubingServiceImpl implements BatchCubingService {
+
+	public static Logger LOG = Logger.getLogger(BatchCubingServiceImpl.class);
+
+	@Autowired
+	private SlottingService slottingService;
+
+	/**
+	 * The number of threads shared by all batches, set by the property "cube.batch.threads". Defaults to the number of cores.
+	 */
+	@Value("${cube.batch.threads:0}")
+	private int threads;
+	/**
+	 * The maximum number of inputs of all batches waiting for or using a thread, or with a result not yet given to the
+	 * listener, set by the property "cube.batch.queueSize". Further inputs wait to be started until a result is given,
+	 * so a large batch is processed a part at a time, and at most this many results are held in memory.
+	 */
+	@Value("${cube.batch.queueSize:10000}")
+	private int queueSize = 10000;
+	private ThreadPoolExecutor executor;
+	private Semaphore queuePermits;
+	private ExecutorService submitExecutor;
+
+	public static final String REJECTED = "Rejected as the server is shutting down";
+	public static final String CANCELLED = "Cancelled as the results are no longer wanted";
+
+	/**
+	 * The results of a single call to slotAll, which are passed to the listener one at a time
+	 */
+	static class Batch {
+		ResultListener listener;
+		boolean ordered;
+		CubingOutput[] outputs;
+		// The queue permit each input holds until its result is given
+		Semaphore permits;
+		boolean[] holdsPermit;
+		int nextIndex;
+		int resultCount;
+		volatile boolean listenerFailed;
+
+		Batch(int size, boolean ordered, ResultListener listener) {
+			this.outputs = new CubingOutput[size];
+			this.holdsPermit = new boolean[size];
+			this.ordered = ordered;
+			this.listener = listener;
+		}
+
+		synchronized void addResult(int index, CubingOutput output) {
+			addResult(index, output, false);
+		}
+
+		/**
+		 * @param holdsPermit true if the input holds a queue permit, which is released once the result is given
+		 */
+		synchronized void addResult(int index, CubingOutput output, boolean holdsPermit) {
+			resultCount++;
+			this.holdsPermit[index] = holdsPermit;
+			if (ordered) {
+				// Hold the result until those before it are given
+				outputs[index] = output;
+				while (nextIndex<outputs.length && outputs[nextIndex]!=null) {
+					CubingOutput nextOutput = outputs[nextIndex];
+					outputs[nextIndex] = null;
+					giveResult(nextIndex++, nextOutput);
+				}
+			} else {
+				giveResult(index, output);
+			}
+			if (resultCount==outputs.length) {
+				try {
+					listener.onComplete();
+				} catch (RuntimeException e) {
+					LOG.warn("Could not complete batch. ERROR: "+e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Give the result to the listener. If the listener fails, the rest of the batch is cancelled.
+		 */
+		private void giveResult(int index, CubingOutput output) {
+			try {
+				if (!listenerFailed) {
+					listener.onResult(index, output);
+				}
+			} catch (RuntimeException e) {
+				LOG.warn("Could not give batch result "+output.getId()+", cancelling the batch. ERROR: "+e.getMessage());
+				listenerFailed = true;
+			} finally {
+				if (holdsPermit[index]) {
+					holdsPermit[index] = false;
+					permits.release();
+				}
+			}
+		}
+
+		boolean isCancelled() {
+			return listenerFailed || listener.isCancelled();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void slotAll(List<CubingInput> inputs, boolean ordered, ResultListener listener) {
+		LOG.info("slotAll START. inputs="+inputs.size()+", ordered="+ordered);
+		final Batch batch = new Batch(inputs.size(), ordered, listener);
+		if (inputs.isEmpty()) {
+			listener.onComplete();
+			return;
+		}
+		final ThreadPoolExecutor executor = getExecutor();
+		final Semaphore queuePermits = this.queuePermits;
+		batch.permits = queuePermits;
+		// Use the strategy requested by the caller for every input
+		final PackingStrategyRequest strategy = PackingStrategyRequest.getRequested();
+		final List<CubingInput> batchInputs = inputs;
+		// The inputs are started from another thread, which waits for space in the queue, so this returns straight away
+		getSubmitExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i<batchInputs.size(); i++) {
+					final int index = i;
+					final CubingInput input = batchInputs.get(i);
+					if (batch.isCancelled()) {
+						batch.addResult(index, new CubingOutput().setId(getId(index, input)).setError(CANCELLED));
+						continue;
+					}
+					try {
+						queuePermits.acquire();
+					} catch (InterruptedException e) {
+						// Shutting down, so the rest are not processed
+						Thread.currentThread().interrupt();
+						batch.addResult(index, new CubingOutput().setId(getId(index, input)).setError(REJECTED));
+						continue;
+					}
+					try {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								// Each input has the whole budget, counted from when it starts
+								PackingStrategyRequest.setRequested(strategy!=null ? strategy.restart() : null);
+								try {
+									CubingOutput output = batch.isCancelled() ? new CubingOutput().setId(getId(index, input)).setError(CANCELLED) : slot(index, input);
+									// The permit is released when the result is given, so results held for order count against the queue
+									batch.addResult(index, output, true);
+								} finally {
+									PackingStrategyRequest.setRequested(null);
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						queuePermits.release();
+						batch.addResult(index, new CubingOutput().setId(getId(index, input)).setError(REJECTED));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Slot a single input, returning the output with either the result or the error
+	 */
+	private CubingOutput slot(int index, CubingInput input) {
+		CubingOutput output = new CubingOutput().setId(getId(index, input));
+		try {
+			if (input.getCubeSpaces()==null || input.getCubeItems()==null) {
+				throw new Exception("cubeSpaces and cubeItems are required");
+			}
+			CubeSpace cubeSpace = slottingService.findCubeSpace(input.getCubeSpaces(), input.getCubeItems());
+			output.setCubeSpace(cubeSpace);
+		} catch (Exception e) {
+			LOG.warn("Could not slot input "+output.getId()+". ERROR: "+e.getMessage());
+			output.setError(e.getMessage());
+		}
+		return output;
+	}
+
+	private String getId(int index, CubingInput input) {
+		return input.getId()!=null ? input.getId() : String.valueOf(index);
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor==null) {
+			int poolSize = threads>0 ? threads : Runtime.getRuntime().availableProcessors();
+			executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				private AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "batch-cubing-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			// At most queueSize inputs are queued, so the queue is never full
+			queuePermits = new Semaphore(queueSize, true);
+		}
+		return executor;
+	}
+
+	private synchronized ExecutorService getSubmitExecutor() {
+		if (submitExecutor==null) {
+			submitExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "batch-submit-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return submitExecutor;
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (submitExecutor!=null) {
+			submitExecutor.shutdownNow();
+			submitExecutor = null;
+		}
+		if (executor!=null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public void setSlottingService(SlottingService slottingService) {
+		this.slottingService = slottingService;
+	}
+
+	public synchronized void setThreads(int threads) {
+		shutdown();
+		this.threads = threads;
+	}
+
+	public synchronized void setQueueSize(int queueSize) {
+		shutdown();
+		this.queueSize = queueSize;
+	}
+}
@@ -0,0 +1,292 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.BinPackingService;
+import au.com.digitalspider.cube.service.CubingService;
+import au.com.digitalspider.cube.service.PackingStrategy;
+import au.com.digitalspider.cube.service.PackingStrategyService;
+
+/**
+ * First fit decreasing bin packing, using the {@link PackingStrategy} chosen by the {@link PackingStrategyService} to
+ * check whether items fit into a cube space. The many trial packings are not cached, so only the final packing of each
+ * cube space goes through the cache of the {@link CubingService}.
+ */
+@Service
+public class BinPackingServiceImpl implements BinPackingService {
+
+	public static Logger LOG = Logger.getLogger(BinPackingServiceImpl.class);
+
+	@Autowired
+	private CubingService cubingService;
+	@Autowired
+	private PackingStrategyService strategyService;
+
+	/**
+	 * A cube space being filled, and the items added to it so far.
+	 */
+	static class Bin {
+		CubeItem space;
+		List<CubeItem> cubeList = new ArrayList<CubeItem>();
+		double volume;
+
+		Bin(CubeItem space) {
+			this.space = space;
+		}
+
+		Bin copy() {
+			Bin bin = new Bin(space);
+			for (CubeItem cube : cubeList) {
+				bin.cubeList.add(copyOf(cube, cube.quantity));
+			}
+			bin.volume = volume;
+			return bin;
+		}
+
+		void add(CubeItem cube, int quantity) {
+			volume += volume(cube)*quantity;
+			for (CubeItem binCube : cubeList) {
+				if (isSameItem(binCube, cube)) {
+					binCube.quantity += quantity;
+					return;
+				}
+			}
+			cubeList.add(copyOf(cube, quantity));
+		}
+	}
+
+	/**
+	 * Compare CubeItems by volume, largest first
+	 */
+	static final Comparator<CubeItem> VOLUME_DESCENDING = new Comparator<CubeItem>() {
+		@Override
+		public int compare(CubeItem cubeLHS, CubeItem cubeRHS) {
+			return Double.compare(volume(cubeRHS), volume(cubeLHS));
+		}
+	};
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<CubeSpace> packCubeSpaces(List<CubeItem> spaces, List<CubeItem> items, int improvementRounds) throws Exception {
+		LOG.info("packCubeSpaces START. spaces="+spaces+", items="+items);
+		if (spaces==null || spaces.isEmpty()) {
+			throw new Exception("No cube spaces provided!");
+		}
+		List<CubeItem> sortedSpaces = new ArrayList<CubeItem>(spaces);
+		Collections.sort(sortedSpaces, VOLUME_DESCENDING);
+		List<CubeItem> sortedItems = new ArrayList<CubeItem>(items);
+		Collections.sort(sortedItems, VOLUME_DESCENDING);
+
+		List<Bin> bins = new ArrayList<Bin>();
+		for (CubeItem cube : sortedItems) {
+			int remainingQuantity = addFirstFit(bins, cube, cube.quantity);
+			CubeItem openingSpace = null;
+			while (remainingQuantity>0) {
+				// New bins are opened with the largest space the cube fits, and reduced to the smallest space that fits at the end
+				if (openingSpace==null) {
+					openingSpace = findOpeningSpace(sortedSpaces, cube);
+				}
+				Bin bin = new Bin(openingSpace);
+				int quantity = findFitQuantity(bin, cube, remainingQuantity);
+				if (quantity==0) {
+					throw new Exception("Cube does not fit into any cube space! "+cube);
+				}
+				bin.add(cube, quantity);
+				bins.add(bin);
+				remainingQuantity -= quantity;
+			}
+		}
+		LOG.info("First fit decreasing used "+bins.size()+" cube spaces");
+
+		for (int round=0; round<improvementRounds && bins.size()>1; round++) {
+			List<Bin> improvedBins = removeLeastFullBin(bins);
+			if (improvedBins==null) {
+				break;
+			}
+			bins = improvedBins;
+			LOG.info("Improvement round "+round+" reduced to "+bins.size()+" cube spaces");
+		}
+
+		// Reduce each bin to the smallest space which fits
+		Collections.reverse(sortedSpaces);
+		List<CubeSpace> cubeSpaces = new ArrayList<CubeSpace>(bins.size());
+		for (Bin bin : bins) {
+			cubeSpaces.add(packSmallestSpace(bin, sortedSpaces));
+		}
+		LOG.info("packCubeSpaces DONE. cubeSpaces="+cubeSpaces.size());
+		return cubeSpaces;
+	}
+
+	/**
+	 * Find the first of the spaces, largest first, which fits one of the cube. A larger space may still not fit a cube
+	 * of a different shape.
+	 */
+	private CubeItem findOpeningSpace(List<CubeItem> sortedSpaces, CubeItem cube) throws Exception {
+		for (CubeItem space : sortedSpaces) {
+			if (findFitQuantity(new Bin(space), cube, 1)>0) {
+				return space;
+			}
+		}
+		throw new Exception("Cube does not fit into any cube space! "+cube);
+	}
+
+	/**
+	 * Add as much of the quantity of the cube as fits into the bins, in order.
+	 *
+	 * @return the quantity remaining which did not fit into any bin
+	 */
+	private int addFirstFit(List<Bin> bins, CubeItem cube, int quantity) {
+		for (Bin bin : bins) {
+			if (quantity==0) {
+				break;
+			}
+			int fitQuantity = findFitQuantity(bin, cube, quantity);
+			if (fitQuantity>0) {
+				bin.add(cube, fitQuantity);
+				quantity -= fitQuantity;
+			}
+		}
+		return quantity;
+	}
+
+	/**
+	 * Try to move all the items from the least full bin into the other bins.
+	 *
+	 * @return the new list of bins, or null if the items did not all fit
+	 */
+	private List<Bin> removeLeastFullBin(List<Bin> bins) {
+		Bin leastFullBin = bins.get(0);
+		for (Bin bin : bins) {
+			if (bin.volume<leastFullBin.volume) {
+				leastFullBin = bin;
+			}
+		}
+		List<Bin> otherBins = new ArrayList<Bin>(bins.size()-1);
+		for (Bin bin : bins) {
+			if (bin!=leastFullBin) {
+				otherBins.add(bin.copy());
+			}
+		}
+		List<CubeItem> sortedItems = new ArrayList<CubeItem>(leastFullBin.cubeList);
+		Collections.sort(sortedItems, VOLUME_DESCENDING);
+		for (CubeItem cube : sortedItems) {
+			if (addFirstFit(otherBins, cube, cube.quantity)>0) {
+				return null;
+			}
+		}
+		return otherBins;
+	}
+
+	/**
+	 * Find the largest quantity of the cube, up to the given quantity, which can be added to the bin. Limited by the
+	 * remaining volume, and then a binary search using the cubingService.
+	 */
+	private int findFitQuantity(Bin bin, CubeItem cube, int quantity) {
+		double cubeVolume = volume(cube);
+		if (cubeVolume>0) {
+			double remainingVolume = volume(bin.space)-bin.volume;
+			quantity = (int) Math.min(quantity, Math.floor(remainingVolume/cubeVolume));
+		}
+		if (quantity<=0) {
+			return 0;
+		}
+		if (fits(bin, cube, quantity)) {
+			return quantity;
+		}
+		int low = 0;
+		int high = quantity-1;
+		while (low<high) {
+			int mid = low+(high-low+1)/2;
+			if (fits(bin, cube, mid)) {
+				low = mid;
+			} else {
+				high = mid-1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Check if the quantity of the cube can be added to the items already in the bin
+	 */
+	private boolean fits(Bin bin, CubeItem cube, int quantity) {
+		List<CubeItem> cubeList = new ArrayList<CubeItem>(bin.cubeList);
+		cubeList.add(copyOf(cube, quantity));
+		return pack(cubeList, bin.space, false)!=null;
+	}
+
+	/**
+	 * Pack the bin into the smallest of the sorted spaces that fits its items
+	 */
+	private CubeSpace packSmallestSpace(Bin bin, List<CubeItem> smallestSpaces) throws Exception {
+		for (CubeItem space : smallestSpaces) {
+			if (volume(space)<bin.volume) {
+				continue;
+			}
+			CubeSpace cubeSpace = pack(bin.cubeList, space, true);
+			if (cubeSpace!=null) {
+				return cubeSpace;
+			}
+		}
+		throw new Exception("Could not pack items="+bin.cubeList+" into any cube space!");
+	}
+
+	/**
+	 * Pack the items into the space, returning null if they do not fit
+	 *
+	 * @param cached true to pack with the cubingService, which caches the result, or false to pack with the selected strategy
+	 */
+	private CubeSpace pack(List<CubeItem> cubeList, CubeItem space, boolean cached) {
+		if (!new FeasibilityBounds(cubeList, Orientation.HORIZONTAL).check(space).isFitted()) {
+			return null;
+		}
+		try {
+			if (cached) {
+				return cubingService.calculateCubeSpace(cubeList, space.getLength(), space.getWidth(), space.getHeight(), space.getWeight());
+			}
+			int cubeCount = CachingCubingService.getCubeCount(cubeList);
+			PackingStrategy strategy = strategyService.selectStrategy(cubeCount);
+			long startTime = System.nanoTime();
+			CubeSpace cubeSpace = strategy.calculateCubeSpace(cubeList, space.getLength(), space.getWidth(), space.getHeight(), space.getWeight());
+			strategyService.recordTime(strategy, cubeCount, System.nanoTime()-startTime);
+			return cubeSpace;
+		} catch (Exception e) {
+			LOG.debug("Could not pack items into "+space+". ERROR: "+e.getMessage());
+			return null;
+		}
+	}
+
+	static double volume(CubeItem cube) {
+		return cube.length*cube.width*cube.height;
+	}
+
+	static boolean isSameItem(CubeItem cubeLHS, CubeItem cubeRHS) {
+		return (cubeLHS.id==null ? cubeRHS.id==null : cubeLHS.id.equals(cubeRHS.id))
+				&& cubeLHS.length==cubeRHS.length && cubeLHS.width==cubeRHS.width && cubeLHS.height==cubeRHS.height
+				&& cubeLHS.weight==cubeRHS.weight;
+	}
+
+	static CubeItem copyOf(CubeItem cube, int quantity) {
+		return new CubeItem(cube.id, cube.length, cube.width, cube.height, cube.weight, quantity);
+	}
+
+	public void setCubingService(CubingService cubingService) {
+		this.cubingService = cubingService;
+	}
+
+	public void setStrategyService(PackingStrategyService strategyService) {
+		this.strategyService = strategyService;
+	}
+}
@@ -0,0 +1,191 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+
+/**
+ * The boxes placed in a container by a packer which places each cube at a position, such as
+ * {@link ExtremePointPacking} and {@link ShelfCubingService}. The boxes are held in primitive arrays, and converted to
+ * {@link CubeSpace} objects using {@link #toCubeSpace()} once packing is complete.
+ *
+ * The x, y and z of a box are along the length, width and height of the container. Not thread safe, a new packing is
+ * created for each calculation.
+ */
+class BoxPacking {
+
+	/**
+	 * The tolerance for comparing positions, so boxes which touch are not found to overlap due to rounding
+	 */
+	static final double EPSILON = 1e-9;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	final double maxLength;
+	final double maxWidth;
+	final double maxHeight;
+	final double maxWeight;
+	double totalWeight;
+
+	// The boxes placed, from x0,y0,z0 to x1,y1,z1
+	int boxCount;
+	double[] x0;
+	double[] y0;
+	double[] z0;
+	double[] x1;
+	double[] y1;
+	double[] z1;
+	CubeItem[] boxSource;
+
+	// The extent of all the boxes
+	double usedLength;
+	double usedWidth;
+	double usedHeight;
+
+	BoxPacking(double maxLength, double maxWidth, double maxHeight, double maxWeight) {
+		this.maxLength = maxLength;
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.maxWeight = maxWeight;
+		allocateBoxes(INITIAL_CAPACITY);
+	}
+
+	private void allocateBoxes(int capacity) {
+		x0 = copyOf(x0, capacity);
+		y0 = copyOf(y0, capacity);
+		z0 = copyOf(z0, capacity);
+		x1 = copyOf(x1, capacity);
+		y1 = copyOf(y1, capacity);
+		z1 = copyOf(z1, capacity);
+		boxSource = Arrays.copyOf(boxSource==null ? new CubeItem[0] : boxSource, capacity);
+	}
+
+	private static double[] copyOf(double[] array, int capacity) {
+		return array==null ? new double[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	/**
+	 * Check the weight of the cube can be added
+	 */
+	boolean fitsWeight(CubeItem cube) {
+		return maxWeight<=0 || totalWeight+cube.weight<=maxWeight+EPSILON;
+	}
+
+	/**
+	 * Add a box for the cube at the given position, without checking that it fits
+	 *
+	 * @return the index of the new box
+	 */
+	int addBox(double x, double y, double z, double length, double width, double height, CubeItem cube) {
+		if (boxCount==x0.length) {
+			allocateBoxes(boxCount*2);
+		}
+		int box = boxCount++;
+		x0[box] = x;
+		y0[box] = y;
+		z0[box] = z;
+		x1[box] = x+length;
+		y1[box] = y+width;
+		z1[box] = z+height;
+		boxSource[box] = cube;
+		totalWeight += cube.weight;
+		usedLength = Math.max(usedLength, x1[box]);
+		usedWidth = Math.max(usedWidth, y1[box]);
+		usedHeight = Math.max(usedHeight, z1[box]);
+		return box;
+	}
+
+	/**
+	 * Find the length, width and height of each rotation of the cube allowed by the orientation, which fits within the
+	 * max dimensions. For {@link Orientation#ANY} the distinct rotations are ordered by the lowest height, and then the
+	 * longest length.
+	 *
+	 * @return the rotations, empty if the cube will never fit
+	 */
+	static double[][] getRotations(CubeItem cube, Orientation orientation, double maxLength, double maxWidth, double maxHeight) {
+		double[][] dimensions;
+		switch (orientation) {
+			case VERTICAL:
+				CubeItem verticalCube = cube.orientateVertically();
+				dimensions = new double[][] {{verticalCube.length, verticalCube.width, verticalCube.height}};
+				break;
+			case ANY:
+				dimensions = new double[][] {
+						{cube.length, cube.width, cube.height},
+						{cube.width, cube.length, cube.height},
+						{cube.length, cube.height, cube.width},
+						{cube.height, cube.length, cube.width},
+						{cube.width, cube.height, cube.length},
+						{cube.height, cube.width, cube.length}};
+				break;
+			default:
+				dimensions = new double[][] {{cube.length, cube.width, cube.height}};
+		}
+		List<double[]> rotations = new ArrayList<double[]>(dimensions.length);
+		for (double[] d : dimensions) {
+			if (d[0]>maxLength+EPSILON || d[1]>maxWidth+EPSILON || d[2]>maxHeight+EPSILON) {
+				continue;
+			}
+			boolean duplicate = false;
+			for (double[] rotation : rotations) {
+				if (Arrays.equals(rotation, d)) {
+					duplicate = true;
+					break;
+				}
+			}
+			if (duplicate) {
+				continue;
+			}
+			// insertion sort by lowest height, then longest length
+			int j = rotations.size();
+			while (j>0 && (rotations.get(j-1)[2]>d[2] || (rotations.get(j-1)[2]==d[2] && rotations.get(j-1)[0]<d[0]))) {
+				j--;
+			}
+			rotations.add(j, d);
+		}
+		return rotations.toArray(new double[rotations.size()][]);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" boxes="+boxCount+" l="+usedLength+"/"+maxLength+", w="+usedWidth+"/"+maxWidth+" h="+usedHeight+"/"+maxHeight;
+	}
+
+	/**
+	 * Convert the packing into {@link CubeSpace} objects, for returning the result. The root cube space has a single
+	 * cube space the size of the boxes placed, holding a cube space for each box at its x, y and z. The box cube spaces
+	 * are VERTICAL, so the totals of the cube space holding them are their greatest extent, rather than their sum.
+	 */
+	CubeSpace toCubeSpace() {
+		CubeSpace root = new CubeSpace(null, maxWidth, maxLength, maxHeight, maxWeight);
+		if (boxCount==0) {
+			return root;
+		}
+		CubeSpace packedSpace = new CubeSpace(root, maxWidth, maxLength, maxHeight, maxWeight);
+		packedSpace.length = usedLength;
+		packedSpace.width = usedWidth;
+		packedSpace.height = usedHeight;
+		packedSpace.initialised = true;
+		for (int box=0; box<boxCount; box++) {
+			double length = x1[box]-x0[box];
+			double width = y1[box]-y0[box];
+			double height = z1[box]-z0[box];
+			CubeSpace boxSpace = new CubeSpace(packedSpace, width, length, height, boxSource[box].weight);
+			boxSpace.orientation = Orientation.VERTICAL;
+			boxSpace.x = x0[box];
+			boxSpace.y = y0[box];
+			boxSpace.z = z0[box];
+			boxSpace.length = length;
+			boxSpace.width = width;
+			boxSpace.height = height;
+			boxSpace.weight = boxSource[box].weight;
+			boxSpace.initialised = true;
+			boxSpace.cubeList.add(boxSource[box]);
+		}
+		return root;
+	}
+}
@@ -0,0 +1,44 @@
+package au.com.digitalspider.cube.service.impl;
+
+import au.com.digitalspider.cube.bean.CubeSpace;
+
+/**
+ * A cached cubing or slotting result, which is either the {@link CubeSpace} found, or the error when none was found.
+ * Errors are cached too, as slotting tries many cube spaces which do not fit.
+ */
+class CachedCubeSpace {
+
+	private CubeSpace cubeSpace;
+	private String error;
+
+	private CachedCubeSpace(CubeSpace cubeSpace, String error) {
+		this.cubeSpace = cubeSpace;
+		this.error = error;
+	}
+
+	/**
+	 * Cache the cubeSpace, first calculating its totals so later readers only read it
+	 */
+	static CachedCubeSpace of(CubeSpace cubeSpace) {
+		cubeSpace.getTotalLength();
+		cubeSpace.getTotalWidth();
+		cubeSpace.getTotalHeight();
+		cubeSpace.getTotalWeight();
+		return new CachedCubeSpace(cubeSpace, null);
+	}
+
+	static CachedCubeSpace failed(Exception e) {
+		return new CachedCubeSpace(null, e.getMessage());
+	}
+
+	/**
+	 * @return the cached cubeSpace
+	 * @throws Exception with the cached error, if no cubeSpace was found
+	 */
+	CubeSpace get() throws Exception {
+		if (cubeSpace==null) {
+			throw new Exception(error);
+		}
+		return cubeSpace;
+	}
+}
@@ -0,0 +1,152 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.CubingService;
+import au.com.digitalspider.cube.service.PackingStrategy;
+import au.com.digitalspider.cube.service.PackingStrategyService;
+
+/**
+ * Packs with the {@link PackingStrategy} chosen by the {@link PackingStrategyService}, and caches the results, keyed by
+ * the {@link CubingCacheKey} of the items, constraints, orientation and strategy.
+ * This is the {@link CubingService} used by the rest of the application.
+ *
+ * The result of the {@link SearchCubingService} depends on its budget, so the budget is part of the key, and its
+ * failures are not cached, as the search may find a packing when given more time.
+ *
+ * Cached cube spaces are shared between callers, and must not be changed. Calculations requested to be traced by
+ * {@link PackingTrace#setRequested(Boolean)} are not cached, so they are always traced.
+ */
+@Service
+@Primary
+public class CachingCubingService implements CubingService {
+
+	public static Logger LOG = Logger.getLogger(CachingCubingService.class);
+
+	@Autowired
+	private PackingStrategyService strategyService;
+	private ResultCache<CubingCacheKey, CachedCubeSpace> cache = new ResultCache<CubingCacheKey, CachedCubeSpace>(1000);
+
+	public CachingCubingService() {
+	}
+
+	/**
+	 * Choose between the tree packer given and the other built in strategies, outside of the application
+	 */
+	public CachingCubingService(CubingServiceImpl cubingService, int cacheSize) {
+		this(new PackingStrategyServiceImpl(Arrays.<PackingStrategy>asList(cubingService, new ExtremePointCubingService(), new ShelfCubingService(),
+				new SearchCubingService(), new PortfolioCubingService(cubingService), new LayerCubingService())), cacheSize);
+	}
+
+	public CachingCubingService(PackingStrategyService strategyService, int cacheSize) {
+		this.strategyService = strategyService;
+		setCacheSize(cacheSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight) throws Exception {
+		return calculateCubeSpace(cubeList,maxLength,maxWidth,maxHeight,maxWeight,null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		int cubeCount = getCubeCount(cubeList);
+		PackingStrategy strategy = strategyService.selectStrategy(cubeCount);
+		if (!cache.isEnabled() || PackingTrace.isRequested()) {
+			return calculateCubeSpace(strategy, cubeCount, cubeList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		}
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+		List<CubeItem> canonicalList = CubingCacheKey.toCanonicalList(cubeList);
+		CubingCacheKey key = CubingCacheKey.of(canonicalList, maxLength, maxWidth, maxHeight, maxWeight, orientation, getCacheName(strategy));
+		CachedCubeSpace result = cache.get(key);
+		if (result==null) {
+			try {
+				result = CachedCubeSpace.of(calculateCubeSpace(strategy, cubeCount, canonicalList, maxLength, maxWidth, maxHeight, maxWeight, orientation));
+			} catch (InterruptedException e) {
+				// Not a result, so not cached
+				throw e;
+			} catch (Exception e) {
+				if (isBudgetDependent(strategy)) {
+					throw e;
+				}
+				result = CachedCubeSpace.failed(e);
+			}
+			cache.put(key, result);
+		} else if (LOG.isDebugEnabled()) {
+			LOG.debug("Cache hit for items="+canonicalList+". "+cache);
+		}
+		return result.get();
+	}
+
+	/**
+	 * Pack with the strategy, recording the time taken to calibrate its estimates
+	 */
+	private CubeSpace calculateCubeSpace(PackingStrategy strategy, int cubeCount, List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		long startTime = System.nanoTime();
+		CubeSpace cubeSpace = strategy.calculateCubeSpace(cubeList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		strategyService.recordTime(strategy, cubeCount, System.nanoTime()-startTime);
+		return cubeSpace;
+	}
+
+	/**
+	 * @return true if the strategy may find a better result with a larger budget
+	 */
+	static boolean isBudgetDependent(PackingStrategy strategy) {
+		return strategy instanceof SearchCubingService;
+	}
+
+	/**
+	 * @return the name of the strategy in the cache key, with the budget of the current thread if the result depends on it
+	 */
+	static String getCacheName(PackingStrategy strategy) {
+		if (isBudgetDependent(strategy)) {
+			return strategy.getName()+"/"+((SearchCubingService) strategy).getBudgetMillis()+"ms";
+		}
+		return strategy.getName();
+	}
+
+	/**
+	 * @return the total quantity of the cubes
+	 */
+	static int getCubeCount(List<CubeItem> cubeList) {
+		int cubeCount = 0;
+		for (CubeItem cube : cubeList) {
+			cubeCount += Math.max(0, cube.quantity);
+		}
+		return cubeCount;
+	}
+
+	public ResultCache<?, ?> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set the maximum number of cached results, by the property "cube.cache.size". Defaults to 1000, and 0 disables the cache.
+	 */
+	@Value("${cube.cache.size:1000}")
+	public void setCacheSize(int cacheSize) {
+		cache = new ResultCache<CubingCacheKey, CachedCubeSpace>(cacheSize);
+	}
+
+	public void setStrategyService(PackingStrategyService strategyService) {
+		this.strategyService = strategyService;
+	}
+}
@@ -0,0 +1,94 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.service.PackingStrategy;
+import au.com.digitalspider.cube.service.PackingStrategyService;
+import au.com.digitalspider.cube.service.SlottingService;
+
+/**
+ * Caches the results of the {@link SlottingServiceImpl}, keyed by the {@link CubingCacheKey} of the cube spaces and items,
+ * and the name of the strategy the {@link PackingStrategyService} chooses to pack them, with the budget when the result
+ * depends on it. This is the {@link SlottingService} used by the rest of the application. Failures of a strategy which
+ * depends on its budget are not cached, as it may find a packing when given more time.
+ *
+ * Cached cube spaces are shared between callers, and must not be changed. Calculations requested to be traced by
+ * {@link PackingTrace#setRequested(Boolean)} are not cached, so they are always traced.
+ */
+@Service
+@Primary
+public class CachingSlottingService implements SlottingService {
+
+	public static Logger LOG = Logger.getLogger(CachingSlottingService.class);
+
+	@Autowired
+	private SlottingServiceImpl slottingService;
+	@Autowired(required=false)
+	private PackingStrategyService strategyService;
+	private ResultCache<CubingCacheKey, CachedCubeSpace> cache = new ResultCache<CubingCacheKey, CachedCubeSpace>(1000);
+
+	public CachingSlottingService() {
+	}
+
+	public CachingSlottingService(SlottingServiceImpl slottingService, int cacheSize) {
+		this.slottingService = slottingService;
+		setCacheSize(cacheSize);
+	}
+
+	@Override
+	public CubeSpace findCubeSpace(List<CubeItem> spaces, List<CubeItem> items) throws Exception {
+		if (!cache.isEnabled() || PackingTrace.isRequested()) {
+			return slottingService.findCubeSpace(spaces, items);
+		}
+		List<CubeItem> canonicalSpaces = CubingCacheKey.toCanonicalList(spaces);
+		List<CubeItem> canonicalList = CubingCacheKey.toCanonicalList(items);
+		PackingStrategy strategy = strategyService==null ? null : strategyService.selectStrategy(CachingCubingService.getCubeCount(items));
+		CubingCacheKey key = CubingCacheKey.of(canonicalSpaces, canonicalList, strategy==null ? null : CachingCubingService.getCacheName(strategy));
+		CachedCubeSpace result = cache.get(key);
+		if (result==null) {
+			try {
+				result = CachedCubeSpace.of(slottingService.findCubeSpace(canonicalSpaces, canonicalList));
+			} catch (InterruptedException e) {
+				// Not a result, so not cached
+				throw e;
+			} catch (Exception e) {
+				if (strategy!=null && CachingCubingService.isBudgetDependent(strategy)) {
+					throw e;
+				}
+				result = CachedCubeSpace.failed(e);
+			}
+			cache.put(key, result);
+		} else if (LOG.isDebugEnabled()) {
+			LOG.debug("Cache hit for items="+canonicalList+". "+cache);
+		}
+		return result.get();
+	}
+
+	public ResultCache<?, ?> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set the maximum number of cached results, by the property "cube.cache.slotting.size". Defaults to 1000, and 0 disables the cache.
+	 */
+	@Value("${cube.cache.slotting.size:1000}")
+	public void setCacheSize(int cacheSize) {
+		cache = new ResultCache<CubingCacheKey, CachedCubeSpace>(cacheSize);
+	}
+
+	public void setSlottingService(SlottingServiceImpl slottingService) {
+		this.slottingService = slottingService;
+	}
+
+	public void setStrategyService(PackingStrategyService strategyService) {
+		this.strategyService = strategyService;
+	}
+}
@@ -0,0 +1,120 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeCapacity;
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.CapacityService;
+import au.com.digitalspider.cube.service.CubingService;
+
+@Service
+public class CapacityServiceImpl implements CapacityService {
+
+	public static Logger LOG = Logger.getLogger(CapacityServiceImpl.class);
+
+	@Autowired
+	private CubingService cubingService;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int calculateMaxQuantity(CubeItem cube, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) {
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+		long quantity;
+		switch (orientation) {
+			case ANY:
+				// Try all 6 rotations of the cube
+				quantity = gridQuantity(cube.length, cube.width, cube.height, maxLength, maxWidth, maxHeight);
+				quantity = Math.max(quantity, gridQuantity(cube.width, cube.length, cube.height, maxLength, maxWidth, maxHeight));
+				quantity = Math.max(quantity, gridQuantity(cube.length, cube.height, cube.width, maxLength, maxWidth, maxHeight));
+				quantity = Math.max(quantity, gridQuantity(cube.height, cube.length, cube.width, maxLength, maxWidth, maxHeight));
+				quantity = Math.max(quantity, gridQuantity(cube.width, cube.height, cube.length, maxLength, maxWidth, maxHeight));
+				quantity = Math.max(quantity, gridQuantity(cube.height, cube.width, cube.length, maxLength, maxWidth, maxHeight));
+				break;
+			case VERTICAL:
+				// Same rotation as CubeItem.orientateVertically()
+				quantity = gridQuantity(cube.width, cube.height, cube.length, maxLength, maxWidth, maxHeight);
+				break;
+			default:
+				quantity = gridQuantity(cube.length, cube.width, cube.height, maxLength, maxWidth, maxHeight);
+				break;
+		}
+		if (maxWeight>0 && cube.weight>0) {
+			quantity = Math.min(quantity, (long)(maxWeight/cube.weight));
+		}
+		return (int) Math.min(quantity, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Calculate how many cubes of the given dimensions fit in a grid within the max dimensions
+	 */
+	static long gridQuantity(double length, double width, double height, double maxLength, double maxWidth, double maxHeight) {
+		if (length<=0 || width<=0 || height<=0) {
+			return 0;
+		}
+		return (long)(maxLength/length) * (long)(maxWidth/width) * (long)(maxHeight/height);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeCapacity findMaxQuantity(CubeItem cube, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) {
+		int maxQuantity = calculateMaxQuantity(cube, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		LOG.debug("calculated maxQuantity="+maxQuantity+" for "+cube);
+		if (maxQuantity<=0) {
+			return new CubeCapacity(0, null);
+		}
+		CubeSpace cubeSpace = packCubes(cube, maxQuantity, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		if (cubeSpace!=null) {
+			return new CubeCapacity(maxQuantity, cubeSpace);
+		}
+
+		// The cubingService could not pack them all, so binary search for the largest quantity it can pack
+		int low = 0;
+		int high = maxQuantity-1;
+		CubeSpace lowCubeSpace = null;
+		while (low<high) {
+			int mid = low+(high-low+1)/2;
+			cubeSpace = packCubes(cube, mid, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+			if (cubeSpace!=null) {
+				low = mid;
+				lowCubeSpace = cubeSpace;
+			} else {
+				high = mid-1;
+			}
+		}
+		if (low>0 && lowCubeSpace==null) {
+			lowCubeSpace = packCubes(cube, low, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		}
+		return new CubeCapacity(low, lowCubeSpace);
+	}
+
+	/**
+	 * Pack the given quantity of a copy of the cube, returning null if they do not fit
+	 */
+	private CubeSpace packCubes(CubeItem cube, int quantity, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) {
+		List<CubeItem> cubeList = new ArrayList<CubeItem>();
+		cubeList.add(new CubeItem(cube.id, cube.length, cube.width, cube.height, cube.weight, quantity));
+		try {
+			return cubingService.calculateCubeSpace(cubeList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		} catch (Exception e) {
+			LOG.debug("Could not pack qty="+quantity+" of "+cube+". ERROR: "+e.getMessage());
+			return null;
+		}
+	}
+
+	public void setCubingService(CubingService cubingService) {
+		this.cubingService = cubingService;
+	}
+}
@@ -0,0 +1,362 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+
+/**
+ * Reads {@link CubeItem}s one at a time from CSV in the format "PID,weight,length,width,height,quantity", so large files
+ * do not need to be held in memory. Lines are read into a reused char buffer and the numbers are parsed in place, so the
+ * only object created for each line is the CubeItem and its id.
+ *
+ * Lines are handled the same as {@link CubingServiceImpl#parseCSVInput(String)}: blank lines, the header line starting
+ * with "PID", and lines without 6 values are skipped. An invalid number throws a {@link NumberFormatException}.
+ *
+ * An order manifest has an extra first column, "OrderID,PID,weight,length,width,height,quantity", read with
+ * orderIdColumn=true. The header line then starts with "OrderID", and {@link #getOrderId()} gives the order of the
+ * last CubeItem read.
+ */
+public class CubeItemCSVReader implements Closeable {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int FIELD_COUNT = 6;
+	private static final int MAX_EXACT_EXPONENT = 22;
+	private static final long MAX_EXACT_MANTISSA = 1L<<53;
+	private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_EXPONENT+1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i=1; i<POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1]*10;
+		}
+	}
+
+	private Reader reader;
+	private char[] buffer = new char[8192];
+	private int position;
+	private int limit;
+	private boolean endOfInput;
+	private boolean skipLineFeed;
+	private int lineStart;
+	private int lineEnd;
+	private int[] fieldStart = new int[FIELD_COUNT+2];
+	private int[] fieldEnd = new int[FIELD_COUNT+2];
+	private boolean orderIdColumn;
+	private int fieldCount = FIELD_COUNT;
+	private String orderId;
+
+	public CubeItemCSVReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	public CubeItemCSVReader(Reader reader, boolean orderIdColumn) {
+		this.reader = reader;
+		this.orderIdColumn = orderIdColumn;
+		if (orderIdColumn) {
+			fieldCount = FIELD_COUNT+1;
+		}
+	}
+
+	public CubeItemCSVReader(InputStream inputStream) {
+		this(new InputStreamReader(inputStream, UTF8));
+	}
+
+	public CubeItemCSVReader(Path path) throws IOException {
+		this(Files.newBufferedReader(path, UTF8));
+	}
+
+	/**
+	 * Read the next CubeItem
+	 *
+	 * @return the next CubeItem, or null at the end of the input
+	 * @throws IOException if the input cannot be read
+	 */
+	public CubeItem next() throws IOException {
+		while (readLine()) {
+			if (isBlankLine() || startsWith(orderIdColumn ? "OrderID" : "PID")) {
+				continue;
+			}
+			if (splitLine()!=fieldCount) {
+				continue;
+			}
+			int field = 0;
+			if (orderIdColumn) {
+				readOrderId(fieldStart[0], fieldEnd[0]);
+				field++;
+			}
+			String id = new String(buffer, fieldStart[field], fieldEnd[field]-fieldStart[field]);
+			double weight = parseDouble(fieldStart[field+1], fieldEnd[field+1]);
+			double l = parseDouble(fieldStart[field+2], fieldEnd[field+2]);
+			double w = parseDouble(fieldStart[field+3], fieldEnd[field+3]);
+			double h = parseDouble(fieldStart[field+4], fieldEnd[field+4]);
+			int quantity = parseInt(fieldStart[field+5], fieldEnd[field+5]);
+			CubeItem cube = new CubeItem(id,l,w,h);
+			cube.quantity = quantity;
+			cube.weight = weight;
+			return cube;
+		}
+		return null;
+	}
+
+	/**
+	 * Read up to batchSize CubeItems, for processing a large input in batches
+	 *
+	 * @return the next CubeItems, which is empty at the end of the input
+	 */
+	public List<CubeItem> readBatch(int batchSize) throws IOException {
+		List<CubeItem> cubeList = new ArrayList<CubeItem>(Math.min(batchSize, 1024));
+		CubeItem cube;
+		while (cubeList.size()<batchSize && (cube = next())!=null) {
+			cubeList.add(cube);
+		}
+		return cubeList;
+	}
+
+	/**
+	 * Read all the remaining CubeItems
+	 */
+	public List<CubeItem> readAll() throws IOException {
+		return readBatch(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The order of the last CubeItem read, when reading with orderIdColumn=true
+	 */
+	public String getOrderId() {
+		return orderId;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Find the next line in the buffer, with the same line endings as {@link java.io.BufferedReader#readLine()}
+	 *
+	 * @return true if a line was found, which is from lineStart to lineEnd
+	 */
+	private boolean readLine() throws IOException {
+		int scan = position;
+		while (true) {
+			if (scan>=limit) {
+				if (endOfInput) {
+					if (position<limit) {
+						lineStart = position;
+						lineEnd = limit;
+						position = limit;
+						return true;
+					}
+					return false;
+				}
+				scan -= position;
+				fill();
+				continue;
+			}
+			char c = buffer[scan];
+			if (skipLineFeed) {
+				skipLineFeed = false;
+				if (c=='\n' && scan==position) {
+					position = ++scan;
+					continue;
+				}
+			}
+			if (c=='\n' || c=='\r') {
+				lineStart = position;
+				lineEnd = scan;
+				position = scan+1;
+				skipLineFeed = c=='\r';
+				return true;
+			}
+			scan++;
+		}
+	}
+
+	/**
+	 * Move the unread chars to the start of the buffer, growing it if a line fills it, and read more input
+	 */
+	private void fill() throws IOException {
+		int remaining = limit-position;
+		if (remaining==buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length*2);
+		} else if (position>0) {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+		}
+		position = 0;
+		limit = remaining;
+		int read = reader.read(buffer, limit, buffer.length-limit);
+		if (read<0) {
+			endOfInput = true;
+		} else {
+			limit += read;
+		}
+	}
+
+	private boolean isBlankLine() {
+		for (int i=lineStart; i<lineEnd; i++) {
+			if (buffer[i]>' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean startsWith(String prefix) {
+		if (lineEnd-lineStart<prefix.length()) {
+			return false;
+		}
+		for (int i=0; i<prefix.length(); i++) {
+			if (buffer[lineStart+i]!=prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the fields of the line, ignoring trailing empty fields as {@link String#split(String)} does
+	 *
+	 * @return the number of fields, up to fieldCount+1
+	 */
+	private int splitLine() {
+		int count = 0;
+		int start = lineStart;
+		int lastNonEmpty = 0;
+		for (int i=lineStart; i<=lineEnd; i++) {
+			if (i==lineEnd || buffer[i]==',') {
+				if (i>start) {
+					if (count>fieldCount) {
+						return count;
+					}
+					lastNonEmpty = count+1;
+				}
+				if (count<=fieldCount) {
+					fieldStart[count] = start;
+					fieldEnd[count] = i;
+				}
+				count++;
+				start = i+1;
+			}
+		}
+		return lastNonEmpty;
+	}
+
+	/**
+	 * Read the order id, reusing the previous String while the order is the same, as the lines of an order are together
+	 */
+	private void readOrderId(int start, int end) {
+		if (orderId!=null && orderId.length()==end-start) {
+			boolean same = true;
+			for (int i=start; i<end && same; i++) {
+				same = buffer[i]==orderId.charAt(i-start);
+			}
+			if (same) {
+				return;
+			}
+		}
+		orderId = new String(buffer, start, end-start);
+	}
+
+	/**
+	 * Parse a decimal number in place. Numbers with more than 15 significant digits, a large exponent,
+	 * or which are not plain decimals (such as "NaN") are left to {@link Double#parseDouble(String)}.
+	 */
+	private double parseDouble(int start, int end) {
+		// Double.parseDouble ignores leading and trailing whitespace
+		while (start<end && buffer[start]<=' ') {
+			start++;
+		}
+		while (end>start && buffer[end-1]<=' ') {
+			end--;
+		}
+		int i = start;
+		boolean negative = false;
+		if (i<end && (buffer[i]=='-' || buffer[i]=='+')) {
+			negative = buffer[i]=='-';
+			i++;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean exact = true;
+		boolean point = false;
+		for (; i<end; i++) {
+			char c = buffer[i];
+			if (c>='0' && c<='9') {
+				if (mantissa<MAX_EXACT_MANTISSA/10) {
+					mantissa = mantissa*10+(c-'0');
+				} else {
+					exact = false;
+				}
+				if (point) {
+					exponent--;
+				}
+				digits++;
+			} else if (c=='.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (i<end && (buffer[i]=='e' || buffer[i]=='E') && digits>0) {
+			i++;
+			boolean negativeExponent = false;
+			if (i<end && (buffer[i]=='-' || buffer[i]=='+')) {
+				negativeExponent = buffer[i]=='-';
+				i++;
+			}
+			int exponentDigits = 0;
+			int value = 0;
+			for (; i<end && buffer[i]>='0' && buffer[i]<='9'; i++) {
+				if (value<1000) {
+					value = value*10+(buffer[i]-'0');
+				}
+				exponentDigits++;
+			}
+			if (exponentDigits==0) {
+				exact = false;
+			}
+			exponent += negativeExponent ? -value : value;
+		}
+		if (i!=end || digits==0 || !exact || Math.abs(exponent)>MAX_EXACT_EXPONENT) {
+			return Double.parseDouble(new String(buffer, start, end-start));
+		}
+		// The mantissa and the power of ten are both exact, so a single multiply or divide is correctly rounded
+		double value = exponent<0 ? mantissa/POWERS_OF_TEN[-exponent] : mantissa*POWERS_OF_TEN[exponent];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse an int in place, which like {@link Integer#parseInt(String)} does not allow whitespace
+	 */
+	private int parseInt(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i<end && (buffer[i]=='-' || buffer[i]=='+')) {
+			negative = buffer[i]=='-';
+			i++;
+		}
+		if (i==end || end-i>9) {
+			return Integer.parseInt(new String(buffer, start, end-start));
+		}
+		int value = 0;
+		for (; i<end; i++) {
+			char c = buffer[i];
+			if (c<'0' || c>'9') {
+				throw new NumberFormatException("For input string: \""+new String(buffer, start, end-start)+"\"");
+			}
+			value = value*10+(c-'0');
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,136 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.Orientation;
+
+/**
+ * The key of a cached cubing or slotting result. The items are put into a canonical form, sorted using
+ * {@link CubeItem#compareTo(CubeItem)} with the quantities of identical items added together, so the same order
+ * gives the same key however its lines are arranged.
+ */
+public class CubingCacheKey {
+
+	/**
+	 * Sorts using {@link CubeItem#compareTo(CubeItem)}, then by the remaining fields, so identical items are next to each other
+	 */
+	static final Comparator<CubeItem> CANONICAL_ORDER = new Comparator<CubeItem>() {
+		@Override
+		public int compare(CubeItem cubeLHS, CubeItem cubeRHS) {
+			int result = cubeLHS.compareTo(cubeRHS);
+			if (result==0) {
+				result = Double.compare(cubeLHS.length, cubeRHS.length);
+			}
+			if (result==0) {
+				result = Double.compare(cubeLHS.width, cubeRHS.width);
+			}
+			if (result==0) {
+				result = Double.compare(cubeLHS.weight, cubeRHS.weight);
+			}
+			if (result==0) {
+				result = cubeLHS.id==null ? (cubeRHS.id==null ? 0 : -1) : (cubeRHS.id==null ? 1 : cubeLHS.id.compareTo(cubeRHS.id));
+			}
+			return result;
+		}
+	};
+
+	private String[] ids;
+	private double[] dimensions;
+	private int[] quantities;
+	private Orientation orientation;
+	private String strategy;
+	private int hashCode;
+
+	private CubingCacheKey(List<CubeItem> cubeList, double[] constraints, Orientation orientation, String strategy) {
+		int size = cubeList.size();
+		ids = new String[size];
+		quantities = new int[size];
+		dimensions = new double[size*4+constraints.length];
+		for (int i=0; i<size; i++) {
+			CubeItem cube = cubeList.get(i);
+			ids[i] = cube.id;
+			quantities[i] = cube.quantity;
+			dimensions[i*4] = cube.length;
+			dimensions[i*4+1] = cube.width;
+			dimensions[i*4+2] = cube.height;
+			dimensions[i*4+3] = cube.weight;
+		}
+		System.arraycopy(constraints, 0, dimensions, size*4, constraints.length);
+		this.orientation = orientation;
+		this.strategy = strategy;
+		hashCode = 31*(31*(31*Arrays.hashCode(ids)+Arrays.hashCode(dimensions))+Arrays.hashCode(quantities))+(orientation==null ? 0 : orientation.hashCode());
+		hashCode = 31*hashCode+(strategy==null ? 0 : strategy.hashCode());
+	}
+
+	/**
+	 * The key for {@link au.com.digitalspider.cube.service.CubingService#calculateCubeSpace(List, double, double, double, double, Orientation)}
+	 *
+	 * @param canonicalList the items, from {@link #toCanonicalList(List)}
+	 * @param strategy the name of the {@link au.com.digitalspider.cube.service.PackingStrategy} packing the items
+	 */
+	public static CubingCacheKey of(List<CubeItem> canonicalList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation, String strategy) {
+		return new CubingCacheKey(canonicalList, new double[] { maxLength, maxWidth, maxHeight, maxWeight }, orientation, strategy);
+	}
+
+	/**
+	 * The key for {@link au.com.digitalspider.cube.service.SlottingService#findCubeSpace(List, List)}
+	 *
+	 * @param canonicalSpaces the cubeSpaces, from {@link #toCanonicalList(List)}
+	 * @param canonicalList the items, from {@link #toCanonicalList(List)}
+	 * @param strategy the name of the {@link au.com.digitalspider.cube.service.PackingStrategy} packing the items
+	 */
+	public static CubingCacheKey of(List<CubeItem> canonicalSpaces, List<CubeItem> canonicalList, String strategy) {
+		double[] constraints = new double[canonicalSpaces.size()*4];
+		for (int i=0; i<canonicalSpaces.size(); i++) {
+			CubeItem space = canonicalSpaces.get(i);
+			constraints[i*4] = space.length;
+			constraints[i*4+1] = space.width;
+			constraints[i*4+2] = space.height;
+			constraints[i*4+3] = space.weight;
+		}
+		return new CubingCacheKey(canonicalList, constraints, Orientation.HORIZONTAL, strategy);
+	}
+
+	/**
+	 * Copy the items into canonical order, adding together the quantities of identical items. The items given are not changed.
+	 */
+	public static List<CubeItem> toCanonicalList(List<CubeItem> cubeList) {
+		List<CubeItem> sortedList = new ArrayList<CubeItem>(cubeList);
+		Collections.sort(sortedList, CANONICAL_ORDER);
+		List<CubeItem> canonicalList = new ArrayList<CubeItem>(sortedList.size());
+		CubeItem previous = null;
+		for (CubeItem cube : sortedList) {
+			if (previous!=null && CANONICAL_ORDER.compare(previous, cube)==0) {
+				previous.quantity += cube.quantity;
+			} else {
+				previous = new CubeItem(cube.id, cube.length, cube.width, cube.height, cube.weight, cube.quantity);
+				canonicalList.add(previous);
+			}
+		}
+		return canonicalList;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this==obj) {
+			return true;
+		}
+		if (!(obj instanceof CubingCacheKey)) {
+			return false;
+		}
+		CubingCacheKey other = (CubingCacheKey) obj;
+		return hashCode==other.hashCode && orientation==other.orientation && (strategy==null ? other.strategy==null : strategy.equals(other.strategy))
+				&& Arrays.equals(quantities, other.quantities)
+				&& Arrays.equals(dimensions, other.dimensions) && Arrays.equals(ids, other.ids);
+	}
+}
@@ -1,60 +1,124 @@
 package au.com.digitalspider.cube.service.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 import au.com.digitalspider.cube.bean.CubeItem;
 import au.com.digitalspider.cube.bean.CubeSpace;
 import au.com.digitalspider.cube.bean.Orientation;
-import au.com.digitalspider.cube.service.CubingService;
+import au.com.digitalspider.cube.bean.PlacementResult;
+import au.com.digitalspider.cube.service.PackingStrategy;
 
 /**
+ * The cubeList given is not modified. Each calculation works on its own sorted copy of the {@link CubeItem}s and its
+ * own {@link PackingTree}, so the service holds no state and is safe for concurrent use.
+ *
  * Outstanding items:
  * <ul>
  * 	<li>Implementation is for width, length, and height. Weight is implemented, but works differently to the other dimensions and so not properly tested.</li>
- *  <li>Orientation.ANY is not implemented either.</li>
+ *  <li>Orientation.ANY only chooses between the rotations of each cube as it is added, and does not revisit earlier choices.</li>
  * </ul>
  */
 @Service
-public class CubingServiceImpl implements CubingService {
+public class CubingServiceImpl implements PackingStrategy {
 
 	public static Logger LOG = Logger.getLogger(CubingServiceImpl.class);
 
+	public static final String NAME = "tree";
+
+	/**
+	 * The fraction of calculations traced with a {@link PackingTrace}, set by the property "cube.trace.sampleRate".
+	 * Defaults to 0, which only traces the calculations requested by {@link PackingTrace#setRequested(Boolean)}.
+	 */
+	@Value("${cube.trace.sampleRate:0}")
+	private double traceSampleRate;
+
+	/**
+	 * The metrics of each calculation, recorded once it has finished:
+	 * <ul>
+	 * 	<li>cube.packer.time: the time taken, including any fall back to another orientation</li>
+	 * 	<li>cube.packer.itemTime: the time taken per cube packed</li>
+	 * 	<li>cube.packer.rearchitectures: the number of cube spaces re-architectured</li>
+	 * 	<li>cube.packer.depth: the depth of the deepest cube space</li>
+	 * 	<li>cube.packer.spaces: the number of cube spaces</li>
+	 * 	<li>cube.packer.rejections.&lt;PlacementResult&gt;: the number of packings which failed, by the reason the last cube did not fit</li>
+	 * </ul>
+	 */
+	private MetricRegistry metricRegistry;
+	private Timer packTimer;
+	private Timer itemTimer;
+	private Counter rearchitectureCounter;
+	private Histogram depthHistogram;
+	private Histogram spacesHistogram;
+
+	public CubingServiceImpl() {
+		setMetricRegistry(new MetricRegistry());
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Adding each cube searches the tree of cube spaces, which grows with the cubes added
+	 */
+	@Override
+	public long estimateNanos(int cubeCount) {
+		return 20000L+1000L*cubeCount+2L*cubeCount*cubeCount;
+	}
+
+	@Override
+	public double getExpectedQuality() {
+		return 70;
+	}
+
 	public List<CubeItem> parseCSVInput(String data) throws IOException {
-		BufferedReader reader = new BufferedReader(new StringReader(data));
-		String line;
-		List<CubeItem> cubeList = new ArrayList<CubeItem>();
-		while ((line = reader.readLine()) !=null) {
-			if (line.trim().length()==0) {
-				continue;
-			}
-			if (line.startsWith("PID")) {
-				continue;
-			}
-			String[] lineParts = line.split(",");
-			if (lineParts.length!=6) {
-				continue;
-			}
-			String id = lineParts[0];
-			double weight = Double.parseDouble(lineParts[1]);
-			double l = Double.parseDouble(lineParts[2]);
-			double w = Double.parseDouble(lineParts[3]);
-			double h = Double.parseDouble(lineParts[4]);
-			int quantity = Integer.parseInt(lineParts[5]);
-			CubeItem cube = new CubeItem(id,l,w,h);
-			cube.quantity = quantity;
-			cube.weight = weight;
-			cubeList.add(cube);
-		}
-		return cubeList;
+		return parseCSVInput(new StringReader(data));
+	}
+
+	/**
+	 * Read all the {@link CubeItem}s from the CSV using a {@link CubeItemCSVReader}. The reader is not closed.
+	 */
+	public List<CubeItem> parseCSVInput(Reader reader) throws IOException {
+		return new CubeItemCSVReader(reader).readAll();
+	}
+
+	/**
+	 * Read all the {@link CubeItem}s from the UTF-8 CSV using a {@link CubeItemCSVReader}. The inputStream is not closed.
+	 */
+	public List<CubeItem> parseCSVInput(InputStream inputStream) throws IOException {
+		return new CubeItemCSVReader(inputStream).readAll();
+	}
+
+	/**
+	 * Read all the {@link CubeItem}s from the UTF-8 CSV file using a {@link CubeItemCSVReader}
+	 */
+	public List<CubeItem> parseCSVInput(Path path) throws IOException {
+		CubeItemCSVReader csvReader = new CubeItemCSVReader(path);
+		try {
+			return csvReader.readAll();
+		} finally {
+			csvReader.close();
+		}
 	}
 
 	/**
@@ -70,246 +134,599 @@ public class CubingServiceImpl implements CubingService {
 	 */
 	@Override
 	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
-		Collections.sort(cubeList);
+		// Sort a copy of the list, so the caller's list is not sorted
+		List<CubeItem> sortedList = new ArrayList<CubeItem>(cubeList);
+		Collections.sort(sortedList);
+		return calculateCubeSpaceInOrder(sortedList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+	}
+
+	/**
+	 * As {@link #calculateCubeSpace(List, double, double, double, double, Orientation)}, but adding the cubes in the
+	 * order given, rather than highest first. The packing is designed for the cubes highest first, so other orders
+	 * only sometimes do better.
+	 *
+	 * @param cubeList list of {@link CubeItem} items to calculate in order, which is not modified
+	 */
+	public CubeSpace calculateCubeSpaceInOrder(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		// Copy the cubes, so the result does not change if the caller changes them
+		List<CubeItem> copiedList = new ArrayList<CubeItem>(cubeList.size());
+		for (CubeItem cube : cubeList) {
+			copiedList.add(cube.copy());
+		}
+		cubeList = copiedList;
 
 		if (orientation==null) {
 			orientation = Orientation.HORIZONTAL;
 		}
 
-		CubeSpace cubeSpace = new CubeSpace(null);
-		cubeSpace.maxWidth=maxWidth;
-		cubeSpace.maxLength=maxLength;
-		cubeSpace.maxHeight=maxHeight;
-		cubeSpace.maxWeight=maxWeight;
+		PackingTrace trace = PackingTrace.start(traceSampleRate);
+		if (trace!=null) {
+			trace.name = "orientation="+orientation+" l="+maxLength+" w="+maxWidth+" h="+maxHeight+" weight="+maxWeight+" cubes="+cubeList.size();
+		}
+		// The metrics are of the whole calculation, using the tree of the last attempt
+		PackingTree tree = new PackingTree(maxLength, maxWidth, maxHeight, maxWeight);
+		tree.trace = trace;
+		long startTime = System.nanoTime();
+		try {
+			if (orientation==Orientation.ANY) {
+				// Rotations are chosen one cube at a time, so if that does not work, fall back to the cubes as given
+				try {
+					return packCubeSpace(tree, cubeList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+				} catch (InterruptedException e) {
+					// The result is no longer needed, so do not try again
+					throw e;
+				} catch (Exception e) {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Could not pack with orientation="+orientation+". Trying "+Orientation.HORIZONTAL);
+					}
+					orientation = Orientation.HORIZONTAL;
+					tree = new PackingTree(maxLength, maxWidth, maxHeight, maxWeight);
+					tree.trace = trace;
+				}
+			}
+			return packCubeSpace(tree, cubeList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		} finally {
+			recordMetrics(tree, System.nanoTime()-startTime);
+			if (trace!=null) {
+				trace.log();
+			}
+		}
+	}
+
+	/**
+	 * Pack the sorted cubeList into the empty tree with the given orientation. The packing is done in the
+	 * {@link PackingTree}, which is only converted to {@link CubeSpace} objects once all cubes have been added.
+	 */
+	private CubeSpace packCubeSpace(PackingTree tree, List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		try {
+			packCubeItems(tree, cubeList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+		} catch (Exception e) {
+			if (tree.trace!=null) {
+				tree.trace.failed(tree, e);
+			}
+			throw e;
+		}
+		return tree.toCubeSpace();
+	}
+
+	/**
+	 * Record the metrics of a calculation. The rejection is only counted if the last attempt, and so the calculation, failed.
+	 *
+	 * @param tree the tree of the last attempt
+	 * @param nanos the time of the whole calculation
+	 */
+	private void recordMetrics(PackingTree tree, long nanos) {
+		packTimer.update(nanos, TimeUnit.NANOSECONDS);
+		if (tree.placementCount>0) {
+			itemTimer.update(nanos/tree.placementCount, TimeUnit.NANOSECONDS);
+		}
+		if (tree.rearchitectureCount>0) {
+			rearchitectureCounter.inc(tree.rearchitectureCount);
+		}
+		depthHistogram.update(tree.getDepth());
+		spacesHistogram.update(tree.getAttachedSpaceCount());
+		if (tree.rejection!=null) {
+			metricRegistry.counter("cube.packer.rejections."+tree.rejection).inc();
+		}
+	}
+
+	private void packCubeItems(PackingTree tree, List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		int cubeSpace = PackingTree.ROOT;
 		for (CubeItem cube : cubeList) {
-			LOG.info(cubeSpace+". Adding "+cube);
-			if (maxWeight>0 && cube.weight>cubeSpace.remainingWeight()) {
-				throw new Exception (cubeSpace+". Cube exceeds weight constraints! "+cube);
+			if (tree.trace!=null) {
+				tree.trace.record(PackingTrace.Event.ADDING, cube, cube.quantity, tree);
 			}
+			if (maxWeight>0 && cube.weight>tree.remainingWeight(cubeSpace)) {
+				tree.rejection = PlacementResult.EXCEEDS_WEIGHT;
+				throw new Exception (tree+". Cube exceeds weight constraints! "+cube);
+			}
+			PlacementResult result;
 			switch(orientation) {
 				case ANY:
-					throw new Exception(orientation+" orientation not yet implemented!");
+					// Add each item individually, choosing the best fitting rotation each time
+					int[] rotations = getRotations(tree, cube, maxLength, maxWidth, maxHeight);
+					if (rotations.length==0) {
+						tree.rejection = PlacementResult.NO_SPACE;
+						throw new Exception(tree+". Invalid cube exceeds constraints. Will never fit! "+cube);
+					}
+					addCubeItems(tree, rotations[0], rotations, cube.quantity, cubeSpace, orientation);
+					break;
 				case VERTICAL:
-					cube = cube.orientateVertically();
-					addCubeItemToCubeSpace(cube, cubeSpace, orientation);
+					CubeItem verticalCube = cube.orientateVertically();
+					int verticalItem = tree.addItem(verticalCube, verticalCube.length, verticalCube.width, verticalCube.height, verticalCube.weight, verticalCube.quantity);
+					result = addCubeItemToCubeSpace(tree, verticalItem, null, cubeSpace, orientation);
+					if (!result.isFitted()) {
+						tree.rejection = result;
+						throw new Exception(tree+". Cube does not fit! result="+result+" "+verticalCube);
+					}
 					break;
 				case HORIZONTAL:
 					// Add each item individually
-					int itemCount = cube.quantity;
-					cube.quantity = 1;
-					try {
-						for (int i=0; i<itemCount; i++) {
-							try {
-								addCubeItemToCubeSpace(cube, cubeSpace, orientation);
-							} catch (Exception e) {
-								LOG.info(e);
-								rearchitectureCubeSpace(cubeSpace);
-								addCubeItemToCubeSpace(cube, cubeSpace, orientation);
-							}
-						}
-					} finally {
-						cube.quantity = itemCount;
-					}
+					int item = tree.addItem(cube, cube.length, cube.width, cube.height, cube.weight, 1);
+					addCubeItems(tree, item, null, cube.quantity, cubeSpace, orientation);
 					break;
 				default:
 					throw new Exception("Unknown orientation: "+orientation);
 			}
-			LOG.info(cubeSpace+". Added "+cube);
+			if (tree.trace!=null) {
+				tree.trace.record(PackingTrace.Event.ADDED, cube, cube.quantity, tree);
+			}
 		}
-		return cubeSpace;
+	}
+
+	/**
+	 * Add the quantity of cubes into the cubeSpace one at a time, re-architecturing the cubeSpace if a cube does not fit.
+	 * If the remaining height of the cubeSpace is empty, as many as possible are first added using {@link #addCubeItemsAsBlock}.
+	 *
+	 * @param tree the tree being packed
+	 * @param cube the item to be added, with a quantity of 1
+	 * @param rotations the rotations of the item to choose from, if the orientation is {@link Orientation#ANY}
+	 * @param quantity the number of cubes to add
+	 * @param cubeSpace the root cube space
+	 * @param orientation which orientation to use
+	 * @throws Exception if the cubes do not fit
+	 * @throws InterruptedException if the thread is interrupted, e.g. when the result is no longer needed
+	 */
+	private void addCubeItems(PackingTree tree, int cube, int[] rotations, int quantity, int cubeSpace, Orientation orientation) throws Exception {
+		int blockCount = addCubeItemsAsBlock(tree, cube, quantity, cubeSpace);
+		if (blockCount>0 && tree.trace!=null) {
+			tree.trace.record(PackingTrace.Event.BLOCK, tree.itemSource[cube], blockCount, tree);
+		}
+		for (int i=blockCount; i<quantity; i++) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("Cubing interrupted. "+tree);
+			}
+			PlacementResult result = addCubeItemToCubeSpace(tree, cube, rotations, cubeSpace, orientation);
+			if (!result.isFitted()) {
+				if (tree.cubeCount[cubeSpace]==0) {
+					tree.rejection = result;
+					throw new Exception(tree+". Cube does not fit! result="+result+" "+tree.itemSource[cube]);
+				}
+				rearchitectureCubeSpace(tree, cubeSpace);
+				result = addCubeItemToCubeSpace(tree, cube, rotations, cubeSpace, orientation);
+				if (!result.isFitted()) {
+					tree.rejection = result;
+					throw new Exception(tree+". Cube does not fit! result="+result+" "+tree.itemSource[cube]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the table of distinct rotations of the cube which fit within the max dimensions to the tree, each with a
+	 * quantity of 1. The rotations are ordered by how many of them would fit in a grid within the max dimensions, and
+	 * then by the lowest height, so the first rotation is the best for filling the whole space.
+	 *
+	 * @param tree the tree being packed
+	 * @param cube the cube to rotate
+	 * @return the items for the rotations of the cube, empty if it will never fit
+	 */
+	int[] getRotations(PackingTree tree, CubeItem cube, double maxLength, double maxWidth, double maxHeight) {
+		double[][] dimensions = {
+				{cube.length, cube.width, cube.height},
+				{cube.width, cube.length, cube.height},
+				{cube.length, cube.height, cube.width},
+				{cube.height, cube.length, cube.width},
+				{cube.width, cube.height, cube.length},
+				{cube.height, cube.width, cube.length}};
+		double[][] rotationDimensions = new double[dimensions.length][];
+		long[] gridQuantities = new long[dimensions.length];
+		int rotationCount = 0;
+		for (int i=0; i<dimensions.length; i++) {
+			double[] d = dimensions[i];
+			long gridQuantity = CapacityServiceImpl.gridQuantity(d[0], d[1], d[2], maxLength, maxWidth, maxHeight);
+			if (gridQuantity==0) {
+				continue;
+			}
+			boolean duplicate = false;
+			for (int j=0; j<rotationCount; j++) {
+				if (Arrays.equals(rotationDimensions[j], d)) {
+					duplicate = true;
+					break;
+				}
+			}
+			if (duplicate) {
+				continue;
+			}
+			// insertion sort by gridQuantity, then lowest height
+			int j = rotationCount++;
+			while (j>0 && (gridQuantities[j-1]<gridQuantity || (gridQuantities[j-1]==gridQuantity && rotationDimensions[j-1][2]>d[2]))) {
+				rotationDimensions[j] = rotationDimensions[j-1];
+				gridQuantities[j] = gridQuantities[j-1];
+				j--;
+			}
+			rotationDimensions[j] = d;
+			gridQuantities[j] = gridQuantity;
+		}
+		int[] rotations = new int[rotationCount];
+		for (int i=0; i<rotationCount; i++) {
+			double[] d = rotationDimensions[i];
+			CubeItem rotation = new CubeItem(cube.id, d[0], d[1], d[2], cube.weight, 1);
+			rotations[i] = tree.addItem(rotation, d[0], d[1], d[2], cube.weight, 1);
+		}
+		return rotations;
+	}
+
+	/**
+	 * Find the best fitting rotation of the cube within the given leaf cubeSpace, without changing the cubeSpace.
+	 * The best rotation fits within the current length and height of the cubeSpace, then within the maxHeight, and
+	 * lastly one which requires the maxHeight to be raised. Rotations earlier in the table are preferred.
+	 *
+	 * @return the best rotation, or {@link PackingTree#NONE} if no rotation fits
+	 */
+	int findBestRotation(PackingTree tree, int[] rotations, int cubeSpace) {
+		int bestRotation = PackingTree.NONE;
+		int bestFit = Integer.MAX_VALUE;
+		for (int rotation : rotations) {
+			if (!fitsHorizontally(tree, rotation, cubeSpace)) {
+				continue;
+			}
+			int fit = 2;
+			if (tree.itemLength[rotation]<=tree.length[cubeSpace] && tree.itemHeight[rotation]<=tree.height[cubeSpace]) {
+				fit = 0;
+			} else if (tree.itemHeight[rotation]<=tree.maxHeight[cubeSpace]) {
+				fit = 1;
+			}
+			if (fit<bestFit) {
+				bestRotation = rotation;
+				bestFit = fit;
+				if (fit==0) {
+					break;
+				}
+			}
+		}
+		return bestRotation;
+	}
+
+	/**
+	 * Check if the cube can be added to the leaf cubeSpace using {@link Orientation#HORIZONTAL}, without changing the cubeSpace.
+	 */
+	boolean fitsHorizontally(PackingTree tree, int cube, int cubeSpace) {
+		if (tree.itemWidth[cube]>tree.remainingWidth(cubeSpace)) {
+			return false;
+		}
+		if (tree.itemLength[cube]>tree.length[cubeSpace] && tree.itemLength[cube]>tree.remainingLength(cubeSpace)) {
+			return false;
+		}
+		if (tree.itemHeight[cube]>tree.maxHeight[cubeSpace] && tree.remainingHeight(PackingTree.ROOT)<tree.itemHeight[cube]) {
+			return false;
+		}
+		return true;
 	}
 
 	/**
 	 * Recursively add the cube into the cubeSpace. First try to added to the deepest cubeSpace available, and then
-	 * based on exceptions thrown, try to add it into any fitting cubeSpace.
+	 * based on the {@link PlacementResult} returned, try to add it into any fitting cubeSpace.
 	 *
-	 * @param cube the cube to be added
+	 * @param tree the tree being packed
+	 * @param cube the item to be added
+	 * @param rotations the rotations of the item from {@link #getRotations}, required for {@link Orientation#ANY}
 	 * @param cubeSpace the cube space available
-	 * @param orientation which orientation to use
-	 * @throws Exception if the cube does not fit in
+	 * @param orientation which orientation to use. When {@link Orientation#ANY} the best fitting rotation is added.
+	 * @return {@link PlacementResult#FITTED} if the cube was added, otherwise the reason it does not fit
+	 * @throws Exception if the orientation is not supported
 	 */
-	void addCubeItemToCubeSpace(CubeItem cube, CubeSpace cubeSpace, Orientation orientation) throws Exception {
-		if (cubeSpace.childCubeSpaceList.size()>0) {
-			Iterator<CubeSpace> cubeSpaceItr = cubeSpace.childCubeSpaceList.iterator();
-			while (cubeSpaceItr.hasNext()) {
-				CubeSpace innerCubeSpace = cubeSpaceItr.next();
-				try {
-					try {
-						if (innerCubeSpace.isFull()) {
-							throw new Exception("This cube space is full. Try another one");
-						}
-						addCubeItemToCubeSpace(cube, innerCubeSpace, orientation);
-						break;
-					} catch (Exception e) {
-						// Safe to ignore, unless this is the last space in the list
-						if (!cubeSpaceItr.hasNext()) {
-							LOG.info(e);
-							CubeSpace newCubeSpace = rearchitectureCubeSpace(innerCubeSpace);
-							addCubeItemToCubeSpace(cube, newCubeSpace, orientation);
-						}
+	PlacementResult addCubeItemToCubeSpace(PackingTree tree, int cube, int[] rotations, int cubeSpace, Orientation orientation) throws Exception {
+		if (tree.hasChildren(cubeSpace)) {
+			PlacementResult result = PlacementResult.NO_SPACE;
+			// Only the spaces present at the start are tried, as the last space may be re-architectured
+			int lastInnerCubeSpace = tree.lastChild[cubeSpace];
+			int innerCubeSpace = tree.firstChild[cubeSpace];
+			while (innerCubeSpace!=PackingTree.NONE) {
+				int nextInnerCubeSpace = (innerCubeSpace==lastInnerCubeSpace) ? PackingTree.NONE : tree.nextSibling[innerCubeSpace];
+				if (tree.isFull(innerCubeSpace)) {
+					result = PlacementResult.FULL;
+				} else {
+					result = addCubeItemToCubeSpace(tree, cube, rotations, innerCubeSpace, orientation);
+				}
+				if (result.isFitted()) {
+					break;
+				}
+				// Safe to ignore, unless this is the last space in the list
+				if (nextInnerCubeSpace==PackingTree.NONE) {
+					int newCubeSpace = PackingTree.NONE;
+					if (tree.cubeCount[innerCubeSpace]>0) {
+						newCubeSpace = rearchitectureCubeSpace(tree, innerCubeSpace);
 					}
-				} catch (Exception e2) {
-					if (cubeSpace.childCubeSpaceList.contains(innerCubeSpace)) {
-						throw e2;
-					} else {
+					result = PlacementResult.NO_SPACE;
+					if (newCubeSpace!=PackingTree.NONE) {
+						result = addCubeItemToCubeSpace(tree, cube, rotations, newCubeSpace, orientation);
+					}
+					if (!result.isFitted()) {
+						if (!tree.detached[innerCubeSpace]) {
+							return result;
+						}
 						// CubeSpace was re-architectured while being inserted into.
 						// Insert into the last available space
-						CubeSpace newCubeSpace = cubeSpace.childCubeSpaceList.get(cubeSpace.childCubeSpaceList.size()-1);
-						addCubeItemToCubeSpace(cube, newCubeSpace, orientation);
+						newCubeSpace = tree.lastChild[cubeSpace];
+						result = addCubeItemToCubeSpace(tree, cube, rotations, newCubeSpace, orientation);
 					}
 				}
+				innerCubeSpace = nextInnerCubeSpace;
 			}
-			return;
+			return result;
 		}
+		double cubeLength = tree.itemLength[cube];
+		double cubeWidth = tree.itemWidth[cube];
+		double cubeHeight = tree.itemHeight[cube];
 		switch (orientation) {
 			case ANY:
-				if (cube.longestSide()>cubeSpace.maxLength && cube.longestSide()>cubeSpace.maxWidth) {
-					throw new Exception (cubeSpace+". Invalid cube exceeds constraints. Will never fit! "+cube);
+				int rotation = findBestRotation(tree, rotations, cubeSpace);
+				if (rotation==PackingTree.NONE) {
+					return PlacementResult.NO_SPACE;
 				}
-				break;
+				return addCubeItemToCubeSpace(tree, rotation, null, cubeSpace, Orientation.HORIZONTAL);
 			case VERTICAL:
-				if (cube.length>cubeSpace.maxLength) {
-					throw new Exception (cubeSpace+". Cube exceeds length constraints! "+cube);
+				if (cubeLength>tree.maxLength[cubeSpace]) {
+					return PlacementResult.EXCEEDS_LENGTH;
 				}
-				if (cube.width>cubeSpace.maxWidth) {
-					throw new Exception (cubeSpace+". Cube exceeds width constraints! "+cube);
+				if (cubeWidth>tree.maxWidth[cubeSpace]) {
+					return PlacementResult.EXCEEDS_WIDTH;
 				}
-				if (cube.height>cubeSpace.maxHeight) {
-					throw new Exception (cubeSpace+". Cube exceeds height constraints! "+cube);
+				if (cubeHeight>tree.maxHeight[cubeSpace]) {
+					return PlacementResult.EXCEEDS_HEIGHT;
 				}
 				// initialize
-				if (!cubeSpace.initialised) {
-					cubeSpace.width=cube.width;
-					cubeSpace.length=cube.length;
-					cubeSpace.height=cube.height;
-					cubeSpace.weight=cube.weight;
-					cubeSpace.initialised=true;
-					cubeSpace.cubeList.add(cube);
+				if (!tree.initialised[cubeSpace]) {
+					tree.width[cubeSpace]=cubeWidth;
+					tree.length[cubeSpace]=cubeLength;
+					tree.height[cubeSpace]=cubeHeight;
+					tree.weight[cubeSpace]=tree.itemWeight[cube];
+					tree.initialised[cubeSpace]=true;
+					tree.addPlacement(cubeSpace, cube);
+					tree.invalidateTotals(cubeSpace);
 				} else {
 					// if new cube is higher than current cube space, set new cubeSpace height
-					if (cube.height > cubeSpace.height) {
-						cubeSpace.height=cube.height;
+					if (cubeHeight > tree.height[cubeSpace]) {
+						tree.height[cubeSpace]=cubeHeight;
 					}
 					// if new cube is longer than current cube space, set new cubeSpace length
-					if (cube.length > cubeSpace.length) {
-						cubeSpace.length=cube.length;
+					if (cubeLength > tree.length[cubeSpace]) {
+						tree.length[cubeSpace]=cubeLength;
 					}
+					tree.invalidateTotals(cubeSpace);
 					// add new cube width x cube qty, if possible
-					if ((cube.width*cube.quantity)>cubeSpace.remainingWidth()) {
-						throw new Exception(cubeSpace+". Cube exceeds width constraints! No more space available! "+cube);
-					} else {
-						cubeSpace.width += (cube.width*cube.quantity);
+					double quantityWidth = cubeWidth*tree.itemQuantity[cube];
+					if (quantityWidth>tree.remainingWidth(cubeSpace)) {
+						return PlacementResult.EXCEEDS_WIDTH;
 					}
-					cubeSpace.cubeList.add(cube);
+					tree.width[cubeSpace] += quantityWidth;
+					tree.addPlacement(cubeSpace, cube);
+					tree.invalidateTotals(cubeSpace);
 				}
-				break;
+				return PlacementResult.FITTED;
 			case HORIZONTAL:
-				if (cube.length>cubeSpace.remainingLength() && cube.width>cubeSpace.remainingWidth()) {
-					throw new Exception (cubeSpace+". Cube exceeds width and length constraints! No more space available! "+cube);
+				if (cubeLength>tree.remainingLength(cubeSpace) && cubeWidth>tree.remainingWidth(cubeSpace)) {
+					return PlacementResult.EXCEEDS_LENGTH_AND_WIDTH;
 				}
-				if (cube.height>cubeSpace.maxHeight) {
-					if (cubeSpace.getRoot().remainingHeight()<cube.height) {
-						throw new Exception (cubeSpace+". Cube exceeds height constraints! "+cube);
+				if (cubeHeight>tree.maxHeight[cubeSpace]) {
+					if (tree.remainingHeight(PackingTree.ROOT)<cubeHeight) {
+						return PlacementResult.EXCEEDS_HEIGHT;
 					}
-					if (cubeSpace.getParent()!=null) {
-						cubeSpace.getParent().raiseMaxHeight(cube.height);
+					if (tree.parent[cubeSpace]!=PackingTree.NONE) {
+						tree.raiseMaxHeight(tree.parent[cubeSpace], cubeHeight);
 					}
 				}
 				// if new cube can be added to cubeSpace by width
-				if (cube.width <= cubeSpace.remainingWidth()) {
-					cubeSpace.width+=cube.width;
+				if (cubeWidth <= tree.remainingWidth(cubeSpace)) {
+					tree.width[cubeSpace]+=cubeWidth;
+					tree.invalidateTotals(cubeSpace);
 					// Increase cubeSpace length, if necessary
-					if (cube.length > cubeSpace.length) {
-						// Check there is enough remaining length to increase;
-						if (cube.length>cubeSpace.remainingLength()) {
-							throw new Exception(cubeSpace+". Cube exceeds length constraints! No more space available! Need to go up! "+cube);
+					if (cubeLength > tree.length[cubeSpace]) {
+						// Check there is enough remaining length to increase. Need to go up!
+						if (cubeLength>tree.remainingLength(cubeSpace)) {
+							return PlacementResult.EXCEEDS_LENGTH;
 						}
-						cubeSpace.length = cube.length;
+						tree.length[cubeSpace] = cubeLength;
 					}
 					// Increase cubeSpace height if necessary
-					if (cube.height > cubeSpace.height) {
-						cubeSpace.height = cube.height;
+					if (cubeHeight > tree.height[cubeSpace]) {
+						tree.height[cubeSpace] = cubeHeight;
 					}
-					cubeSpace.cubeList.add(cube);
-					break;
+					tree.addPlacement(cubeSpace, cube);
+					tree.invalidateTotals(cubeSpace);
+					return PlacementResult.FITTED;
 				}
-				// cannot be added by width
-				throw new Exception(cubeSpace+". Cube exceeds width constraints! No more space available! Need to go deeper! "+cube);
+				// cannot be added by width. Need to go deeper!
+				return PlacementResult.EXCEEDS_WIDTH;
 			default:
 				throw new Exception("Unknown orientation: "+orientation);
 		}
 	}
 
+	/**
+	 * Add as many of the identical cubes as possible into the empty height of the root cubeSpace in one go, calculating
+	 * how many fit in a row along the width, how many rows fit along the length, and how many layers fit along the height.
+	 * The empty height is either the whole of an empty root cubeSpace, or the empty cubeSpace for the remaining height
+	 * left as its last child, e.g. by the block of a previous cube line, which is replaced by whole layers of the block.
+	 * The cubeSpaces created have the same shape as when adding the cubes individually, a VERTICAL cubeSpace for
+	 * each layer, each containing a HORIZONTAL cubeSpace for each row, followed by a cubeSpace for the remaining height.
+	 *
+	 * @param tree the tree being packed
+	 * @param cube the item to be added, with a quantity of 1
+	 * @param quantity the number of cubes to add
+	 * @param cubeSpace the root cube space
+	 * @return the number of cubes added, or 0 if the cubes should be added individually
+	 */
+	int addCubeItemsAsBlock(PackingTree tree, int cube, int quantity, int cubeSpace) {
+		if (cubeSpace!=PackingTree.ROOT || tree.cubeCount[cubeSpace]>0) {
+			return 0;
+		}
+		// The empty space for the remaining height, or the root itself if it is empty
+		int emptySpace = cubeSpace;
+		if (tree.hasChildren(cubeSpace)) {
+			emptySpace = tree.lastChild[cubeSpace];
+			if (tree.cubeCount[emptySpace]>0 || tree.hasChildren(emptySpace) || tree.initialised[emptySpace]) {
+				return 0;
+			}
+		}
+		double cubeLength = tree.itemLength[cube];
+		double cubeWidth = tree.itemWidth[cube];
+		double cubeHeight = tree.itemHeight[cube];
+		if (cubeLength<=0 || cubeWidth<=0 || cubeHeight<=0) {
+			return 0;
+		}
+		double maxLength = tree.maxLength[emptySpace];
+		double maxWidth = tree.maxWidth[emptySpace];
+		double maxHeight = tree.maxHeight[emptySpace];
+		int cubesPerRow = (int)(maxWidth/cubeWidth);
+		int rowsPerLayer = (int)(maxLength/cubeLength);
+		int layers = (int)(maxHeight/cubeHeight);
+		// A single row does not need any cube spaces, so add individually
+		if (quantity<=cubesPerRow || cubesPerRow==0 || rowsPerLayer==0 || layers==0) {
+			return 0;
+		}
+		int blockCount = (int) Math.min(quantity, (long) cubesPerRow*rowsPerLayer*layers);
+		if (emptySpace!=cubeSpace) {
+			// Only whole layers, so the rest fill any space left beside the cubes below, as when added individually
+			int cubesPerLayer = cubesPerRow*rowsPerLayer;
+			blockCount -= blockCount%cubesPerLayer;
+			if (blockCount==0) {
+				return 0;
+			}
+			// The layers take the place of the empty space
+			tree.removeLastChild(cubeSpace);
+		}
+		int remainingCount = blockCount;
+		double remainingHeight = maxHeight;
+		while (remainingCount>0) {
+			int layerSpace = tree.addSpace(cubeSpace, maxWidth, maxLength, cubeHeight, tree.remainingWeight(cubeSpace));
+			remainingHeight -= cubeHeight;
+			double remainingLength = maxLength;
+			for (int row=0; row<rowsPerLayer && remainingCount>0; row++) {
+				int rowCount = Math.min(cubesPerRow, remainingCount);
+				remainingCount -= rowCount;
+				// The last row in a layer takes up the remaining length
+				boolean lastRow = (row==rowsPerLayer-1 || remainingCount==0);
+				int rowSpace = tree.addSpace(layerSpace, maxWidth, lastRow ? remainingLength : cubeLength, cubeHeight, tree.remainingWeight(cubeSpace));
+				remainingLength -= cubeLength;
+				tree.length[rowSpace] = cubeLength;
+				tree.width[rowSpace] = cubeWidth*rowCount;
+				tree.height[rowSpace] = cubeHeight;
+				for (int i=0; i<rowCount; i++) {
+					tree.addPlacement(rowSpace, cube);
+				}
+				tree.invalidateTotals(rowSpace);
+			}
+		}
+		if (remainingHeight>0) {
+			tree.addSpace(cubeSpace, maxWidth, maxLength, remainingHeight, tree.remainingWeight(cubeSpace));
+		}
+		return blockCount;
+	}
+
 	/**
 	 * Re-architecture the given cube space, with at least some cubes in it, to break it into 4 cube spaces,
 	 * a heightSpace and a heightRemainingSpace, and within the heightSpace, a lengthSpace, and a lengthRemainingSpace.
 	 *
+	 * @param tree the tree being packed
 	 * @param cubeSpace the given cube space to re-architecture
-	 * @return the next available cube space to try to insert into
-	 * @throws Exception If the space cannot be re-architectured, or it has no cubes in it.
+	 * @return the next available cube space to try to insert into, or {@link PackingTree#NONE} if there is no space remaining
+	 * @throws Exception If the space cannot be re-architectured, or it has no cubes in it. Callers should check {@link PackingTree#cubeCount} first.
 	 */
-	CubeSpace rearchitectureCubeSpace(CubeSpace cubeSpace) throws Exception {
+	int rearchitectureCubeSpace(PackingTree tree, int cubeSpace) throws Exception {
 		// Get the remainingHeight before we change any items
-		double remainingHeight = cubeSpace.remainingHeight();
-		double remainingLength = cubeSpace.remainingLength();
+		double remainingHeight = tree.remainingHeight(cubeSpace);
+		double remainingLength = tree.remainingLength(cubeSpace);
 
-		if (cubeSpace.cubeList.size()==0) {
+		if (tree.cubeCount[cubeSpace]==0) {
 			throw new Exception("Will not re-archirecture space with no cubes!");
 		}
+		tree.rearchitectureCount++;
+		if (tree.trace!=null) {
+			tree.trace.record(PackingTrace.Event.REARCHITECTURE, null, cubeSpace, tree);
+		}
 
 		boolean rearchitectureHeight = false;
-		if (cubeSpace.orientation==Orientation.ANY || cubeSpace.orientation==Orientation.VERTICAL) {
+		if (tree.orientation[cubeSpace]==Orientation.ANY || tree.orientation[cubeSpace]==Orientation.VERTICAL) {
 			rearchitectureHeight = true;
 		}
 
-		CubeSpace workingSpace = cubeSpace;
-		CubeSpace remainingSpace = null;
+		int parentSpace = tree.parent[cubeSpace];
+		int workingSpace = cubeSpace;
+		int remainingSpace = PackingTree.NONE;
 
 		if (rearchitectureHeight) {
-			if (cubeSpace.getParent()!=null) {
-				List<CubeSpace> siblingSpaces = cubeSpace.getParent().childCubeSpaceList;
-				siblingSpaces.remove(siblingSpaces.size()-1);
-				workingSpace = cubeSpace.getParent();
+			if (parentSpace!=PackingTree.NONE) {
+				tree.removeLastChild(parentSpace);
+				workingSpace = parentSpace;
 			}
 
 			// Create height cubeSpace
-			CubeSpace heightSpace = new CubeSpace(workingSpace, cubeSpace.maxWidth, cubeSpace.maxLength, cubeSpace.height, cubeSpace.remainingWeight());
+			int heightSpace = tree.addSpace(workingSpace, tree.maxWidth[cubeSpace], tree.maxLength[cubeSpace], tree.height[cubeSpace], tree.remainingWeight(cubeSpace));
 
 			if (remainingHeight>0) {
 				// Create remaining height cubeSpace
-				CubeSpace remainingHeightSpace = new CubeSpace(workingSpace, cubeSpace.maxWidth, cubeSpace.maxLength, remainingHeight, cubeSpace.remainingWeight());
+				int remainingHeightSpace = tree.addSpace(workingSpace, tree.maxWidth[cubeSpace], tree.maxLength[cubeSpace], remainingHeight, tree.remainingWeight(cubeSpace));
 				remainingSpace = remainingHeightSpace;
 			}
 
 			workingSpace = heightSpace;
 		} else {
-			List<CubeSpace> siblingSpaces = cubeSpace.getParent().childCubeSpaceList;
-			siblingSpaces.remove(siblingSpaces.size()-1);
-			workingSpace = cubeSpace.getParent();
+			tree.removeLastChild(parentSpace);
+			workingSpace = parentSpace;
 		}
 
 		// Create selfSpace cubeSpace
-		CubeSpace lengthSpace = new CubeSpace(workingSpace, cubeSpace.maxWidth, cubeSpace.length, cubeSpace.height, cubeSpace.remainingWeight());
-		lengthSpace.width=cubeSpace.width;
-		lengthSpace.length=cubeSpace.length;
-		lengthSpace.height=cubeSpace.height;
-		lengthSpace.weight=cubeSpace.weight;
-		lengthSpace.cubeList.addAll(cubeSpace.cubeList);
-		lengthSpace.initialised=true;
+		int lengthSpace = tree.addSpace(workingSpace, tree.maxWidth[cubeSpace], tree.length[cubeSpace], tree.height[cubeSpace], tree.remainingWeight(cubeSpace));
+		tree.width[lengthSpace]=tree.width[cubeSpace];
+		tree.length[lengthSpace]=tree.length[cubeSpace];
+		tree.height[lengthSpace]=tree.height[cubeSpace];
+		tree.weight[lengthSpace]=tree.weight[cubeSpace];
+		tree.movePlacements(cubeSpace, lengthSpace);
+		tree.initialised[lengthSpace]=true;
+		tree.invalidateTotals(lengthSpace);
 
 		if (remainingLength>0) {
 			// Create remaining length cubeSpace
-			CubeSpace remainingLengthSpace = new CubeSpace(workingSpace, cubeSpace.maxWidth, remainingLength, lengthSpace.height, cubeSpace.remainingWeight());
+			int remainingLengthSpace = tree.addSpace(workingSpace, tree.maxWidth[cubeSpace], remainingLength, tree.height[lengthSpace], tree.remainingWeight(cubeSpace));
 			remainingSpace = remainingLengthSpace;
 		}
 
 		// clear the parentCubeSpace
-		cubeSpace.width=0;
-		cubeSpace.length=0;
-		cubeSpace.height=0;
-		cubeSpace.weight=0;
-		cubeSpace.cubeList.clear();
+		tree.width[cubeSpace]=0;
+		tree.length[cubeSpace]=0;
+		tree.height[cubeSpace]=0;
+		tree.weight[cubeSpace]=0;
+		tree.invalidateTotals(cubeSpace);
 
 		return remainingSpace;
 	}
+
+	/**
+	 * Set the registry the metrics are recorded in, which is the registry of the actuator in the application
+	 */
+	@Autowired(required=false)
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+		packTimer = metricRegistry.timer("cube.packer.time");
+		itemTimer = metricRegistry.timer("cube.packer.itemTime");
+		rearchitectureCounter = metricRegistry.counter("cube.packer.rearchitectures");
+		depthHistogram = metricRegistry.histogram("cube.packer.depth");
+		spacesHistogram = metricRegistry.histogram("cube.packer.spaces");
+	}
+
+	public void setTraceSampleRate(double traceSampleRate) {
+		this.traceSampleRate = traceSampleRate;
+	}
 }
@@ -0,0 +1,118 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
+import au.com.digitalspider.cube.service.CubingService;
+import au.com.digitalspider.cube.service.PackingStrategy;
+
+/**
+ * A {@link CubingService} which places each cube at the first extreme point it fits, using an
+ * {@link ExtremePointPacking}, rather than building and re-architecturing cube spaces as {@link CubingServiceImpl} does.
+ * The cost of placing a cube depends on the number of points and the boxes near them, rather than the whole tree, so
+ * it scales to thousands of cubes per container.
+ *
+ * The cubes are sorted the same as {@link CubingServiceImpl}, tallest first. {@link Orientation#HORIZONTAL} places the
+ * cubes as given, {@link Orientation#VERTICAL} as {@link CubeItem#orientateVertically()}, and {@link Orientation#ANY}
+ * in any rotation, lowest first. The result holds a cube space for each cube, at its x, y and z.
+ *
+ * The cubeList given is not modified, and the service holds no state, so is safe for concurrent use.
+ */
+@Service
+public class ExtremePointCubingService implements PackingStrategy {
+
+	public static Logger LOG = Logger.getLogger(ExtremePointCubingService.class);
+
+	public static final String NAME = "extremePoint";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Placing each cube checks the points and the boxes near them, which stay about the same in number per cube
+	 */
+	@Override
+	public long estimateNanos(int cubeCount) {
+		return 20000L+10000L*cubeCount;
+	}
+
+	@Override
+	public double getExpectedQuality() {
+		return 60;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight) throws Exception {
+		return calculateCubeSpace(cubeList,maxLength,maxWidth,maxHeight,maxWeight,null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		List<CubeItem> sortedList = new ArrayList<CubeItem>(cubeList.size());
+		int boxCount = 0;
+		for (CubeItem cube : cubeList) {
+			sortedList.add(cube.copy());
+			boxCount += Math.max(0, cube.quantity);
+		}
+		Collections.sort(sortedList);
+		cubeList = sortedList;
+
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+
+		int lineCount = cubeList.size();
+		double[][][] rotations = new double[lineCount][][];
+		for (int line=0; line<lineCount; line++) {
+			rotations[line] = BoxPacking.getRotations(cubeList.get(line), orientation, maxLength, maxWidth, maxHeight);
+			if (rotations[line].length==0) {
+				throw new Exception("Invalid cube exceeds constraints. Will never fit! "+cubeList.get(line));
+			}
+		}
+		// The smallest length, width and height of the cubes from each line on, to find the points no cube can fit at
+		double[][] minimums = new double[lineCount+1][];
+		minimums[lineCount] = new double[] {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		for (int line=lineCount-1; line>=0; line--) {
+			minimums[line] = minimums[line+1].clone();
+			for (double[] rotation : rotations[line]) {
+				for (int i=0; i<3; i++) {
+					minimums[line][i] = Math.min(minimums[line][i], rotation[i]);
+				}
+			}
+		}
+
+		ExtremePointPacking packing = new ExtremePointPacking(maxLength, maxWidth, maxHeight, maxWeight, boxCount);
+		for (int line=0; line<lineCount; line++) {
+			CubeItem cube = cubeList.get(line);
+			for (int i=0; i<cube.quantity; i++) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("Cubing interrupted. "+packing);
+				}
+				PlacementResult result = packing.place(cube, rotations[line], line, minimums[line]);
+				if (!result.isFitted()) {
+					throw new Exception(packing+". Cube does not fit! result="+result+" "+cube);
+				}
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Packed "+packing);
+		}
+		return packing.toCubeSpace();
+	}
+}
@@ -0,0 +1,365 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.PlacementResult;
+
+/**
+ * The working state of {@link ExtremePointCubingService} while packing. Each cube is placed as a box at an extreme
+ * point, the corners of the boxes already placed projected back towards the walls and floor of the container. The
+ * points are kept in a sorted set, lowest first, then along the length, then along the width, and a cube is placed at
+ * the first point it fits.
+ *
+ * Boxes are only ever added, so a point a cube does not fit at will never fit the rest of its line. Each cube of a line
+ * only checks the points after the one the cube before it was placed at, and the few points added below that since,
+ * found in log time from the sorted set. So the points are searched once for each line, rather than once for each cube.
+ *
+ * The boxes are indexed by a grid of cells dividing up the container, each cell listing the boxes which overlap it.
+ * Checking that a box does not overlap any other box, and projecting a point, only look at the boxes in the cells they
+ * cover rather than every box placed.
+ */
+class ExtremePointPacking extends BoxPacking {
+
+	private static final int INITIAL_CELL_CAPACITY = 16;
+	private static final int MAX_CELLS = 32;
+
+	// Grid of cells, columns along the length, rows along the width and layers up the height
+	private final int columns;
+	private final int rows;
+	private final int layers;
+	private final double cellLength;
+	private final double cellWidth;
+	private final double cellHeight;
+	private final int[][] cellBoxes;
+	private final int[] cellBoxCount;
+
+	private final TreeSet<Point> points = new TreeSet<Point>();
+	// The line being placed, the point its last cube was placed at, and the points added since
+	private int cursorLine = -1;
+	private Point cursor;
+	private final List<Point> newPoints = new ArrayList<Point>();
+
+	/**
+	 * A position a box can be placed at, ordered lowest first, then along the length, then along the width.
+	 */
+	static class Point implements Comparable<Point> {
+		final double x;
+		final double y;
+		final double z;
+		/**
+		 * The last cube line which did not fit at this point. More boxes are only ever added, so the rest of that line
+		 * will not fit either.
+		 */
+		int failedLine = -1;
+
+		Point(double x, double y, double z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public int compareTo(Point point) {
+			int result = Double.compare(z, point.z);
+			if (result==0) {
+				result = Double.compare(x, point.x);
+			}
+			if (result==0) {
+				result = Double.compare(y, point.y);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Create an empty packing with a single point in the corner of the container
+	 *
+	 * @param expectedBoxes the number of boxes expected, used to size the grid
+	 */
+	ExtremePointPacking(double maxLength, double maxWidth, double maxHeight, double maxWeight, int expectedBoxes) {
+		super(maxLength, maxWidth, maxHeight, maxWeight);
+		// About one box per cell
+		int cells = Math.max(1, Math.min(MAX_CELLS, (int) Math.cbrt(expectedBoxes)));
+		columns = maxLength>0 ? cells : 1;
+		rows = maxWidth>0 ? cells : 1;
+		layers = maxHeight>0 ? cells : 1;
+		cellLength = maxLength>0 ? maxLength/columns : 1;
+		cellWidth = maxWidth>0 ? maxWidth/rows : 1;
+		cellHeight = maxHeight>0 ? maxHeight/layers : 1;
+		cellBoxes = new int[columns*rows*layers][];
+		cellBoxCount = new int[columns*rows*layers];
+		points.add(new Point(0, 0, 0));
+	}
+
+	/**
+	 * Place one of the cube at the first point where one of its rotations fits. Points where no remaining cube can fit,
+	 * as the smallest box does not fit, are removed.
+	 *
+	 * @param cube the cube being placed
+	 * @param rotations the length, width and height of each rotation the cube may be placed in, in order of preference
+	 * @param line identifies the cube line, which all have the same rotations
+	 * @param minimum the smallest length, width and height of any remaining cube in any rotation
+	 * @return {@link PlacementResult#FITTED} if the cube was placed, otherwise why it was not
+	 */
+	PlacementResult place(CubeItem cube, double[][] rotations, int line, double[] minimum) {
+		if (!fitsWeight(cube)) {
+			return PlacementResult.EXCEEDS_WEIGHT;
+		}
+		if (line!=cursorLine) {
+			cursorLine = line;
+			cursor = null;
+			newPoints.clear();
+		}
+		if (cursor!=null) {
+			// The points before the cursor were all checked for this line, except those added since
+			Collections.sort(newPoints);
+			for (Point point : newPoints) {
+				if (point.compareTo(cursor)>=0) {
+					break;
+				}
+				if (points.contains(point) && tryPlace(point, cube, rotations, line, minimum)) {
+					return PlacementResult.FITTED;
+				}
+			}
+		}
+		Iterator<Point> iterator = cursor==null ? points.iterator() : points.tailSet(cursor, false).iterator();
+		while (iterator.hasNext()) {
+			Point point = iterator.next();
+			if (point.failedLine==line) {
+				continue;
+			}
+			for (double[] rotation : rotations) {
+				if (fits(point, rotation[0], rotation[1], rotation[2])) {
+					iterator.remove();
+					place(point, rotation, cube);
+					return PlacementResult.FITTED;
+				}
+			}
+			if (fits(point, minimum[0], minimum[1], minimum[2])) {
+				point.failedLine = line;
+			} else {
+				iterator.remove();
+			}
+		}
+		return PlacementResult.NO_SPACE;
+	}
+
+	/**
+	 * Place the cube at the point if one of its rotations fits, otherwise mark the point as failed for the line, or
+	 * remove it if no remaining cube can fit.
+	 *
+	 * @return true if the cube was placed
+	 */
+	private boolean tryPlace(Point point, CubeItem cube, double[][] rotations, int line, double[] minimum) {
+		if (point.failedLine==line) {
+			return false;
+		}
+		for (double[] rotation : rotations) {
+			if (fits(point, rotation[0], rotation[1], rotation[2])) {
+				points.remove(point);
+				place(point, rotation, cube);
+				return true;
+			}
+		}
+		if (fits(point, minimum[0], minimum[1], minimum[2])) {
+			point.failedLine = line;
+		} else {
+			points.remove(point);
+		}
+		return false;
+	}
+
+	/**
+	 * Place the box at the point, which has been removed from the points, and move the cursor to it
+	 */
+	private void place(Point point, double[] rotation, CubeItem cube) {
+		cursor = point;
+		newPoints.clear();
+		addIndexedBox(point, rotation[0], rotation[1], rotation[2], cube);
+	}
+
+	/**
+	 * Check that a box placed at the point is within the container, and does not overlap any box
+	 */
+	boolean fits(Point point, double length, double width, double height) {
+		if (point.x+length>maxLength+EPSILON || point.y+width>maxWidth+EPSILON || point.z+height>maxHeight+EPSILON) {
+			return false;
+		}
+		return !overlaps(point.x, point.y, point.z, point.x+length, point.y+width, point.z+height);
+	}
+
+	private boolean overlaps(double ax0, double ay0, double az0, double ax1, double ay1, double az1) {
+		int lastColumn = column(ax1-EPSILON);
+		int lastRow = row(ay1-EPSILON);
+		int lastLayer = layer(az1-EPSILON);
+		for (int c=column(ax0); c<=lastColumn; c++) {
+			for (int r=row(ay0); r<=lastRow; r++) {
+				for (int l=layer(az0); l<=lastLayer; l++) {
+					int cell = cell(c, r, l);
+					int[] boxes = cellBoxes[cell];
+					for (int i=0; i<cellBoxCount[cell]; i++) {
+						int box = boxes[i];
+						if (ax0<x1[box]-EPSILON && x0[box]<ax1-EPSILON
+								&& ay0<y1[box]-EPSILON && y0[box]<ay1-EPSILON
+								&& az0<z1[box]-EPSILON && z0[box]<az1-EPSILON) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add the box, index it in the grid, and add the extreme points of its corners
+	 */
+	private void addIndexedBox(Point point, double length, double width, double height, CubeItem cube) {
+		int box = addBox(point.x, point.y, point.z, length, width, height, cube);
+		int lastColumn = column(x1[box]-EPSILON);
+		int lastRow = row(y1[box]-EPSILON);
+		int lastLayer = layer(z1[box]-EPSILON);
+		for (int c=column(x0[box]); c<=lastColumn; c++) {
+			for (int r=row(y0[box]); r<=lastRow; r++) {
+				for (int l=layer(z0[box]); l<=lastLayer; l++) {
+					addToCell(cell(c, r, l), box);
+				}
+			}
+		}
+
+		// The corner along each axis, projected back along each of the other two axes
+		addPoint(x1[box], projectWidth(x1[box], y0[box], z0[box]), z0[box]);
+		addPoint(x1[box], y0[box], projectHeight(x1[box], y0[box], z0[box]));
+		addPoint(projectLength(x0[box], y1[box], z0[box]), y1[box], z0[box]);
+		addPoint(x0[box], y1[box], projectHeight(x0[box], y1[box], z0[box]));
+		addPoint(projectLength(x0[box], y0[box], z1[box]), y0[box], z1[box]);
+		addPoint(x0[box], projectWidth(x0[box], y0[box], z1[box]), z1[box]);
+	}
+
+	private void addToCell(int cell, int box) {
+		int[] boxes = cellBoxes[cell];
+		if (boxes==null) {
+			boxes = cellBoxes[cell] = new int[INITIAL_CELL_CAPACITY];
+		} else if (cellBoxCount[cell]==boxes.length) {
+			boxes = cellBoxes[cell] = Arrays.copyOf(boxes, boxes.length*2);
+		}
+		boxes[cellBoxCount[cell]++] = box;
+	}
+
+	private void addPoint(double x, double y, double z) {
+		if (x<maxLength-EPSILON && y<maxWidth-EPSILON && z<maxHeight-EPSILON) {
+			Point point = new Point(x, y, z);
+			if (points.add(point)) {
+				newPoints.add(point);
+			}
+		}
+	}
+
+	/**
+	 * Move the point down to the top of the highest box below it, or the floor
+	 */
+	private double projectHeight(double x, double y, double z) {
+		double result = 0;
+		int c = column(x);
+		int r = row(y);
+		for (int l=layer(z); l>=0; l--) {
+			int cell = cell(c, r, l);
+			int[] boxes = cellBoxes[cell];
+			for (int i=0; i<cellBoxCount[cell]; i++) {
+				int box = boxes[i];
+				if (z1[box]<=z+EPSILON && z1[box]>result && covers(x0[box], x1[box], x) && covers(y0[box], y1[box], y)) {
+					result = z1[box];
+				}
+			}
+			if (result>=l*cellHeight) {
+				// No box in the lower layers can be any nearer
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Move the point back along the width to the nearest box, or the wall
+	 */
+	private double projectWidth(double x, double y, double z) {
+		double result = 0;
+		int c = column(x);
+		int l = layer(z);
+		for (int r=row(y); r>=0; r--) {
+			int cell = cell(c, r, l);
+			int[] boxes = cellBoxes[cell];
+			for (int i=0; i<cellBoxCount[cell]; i++) {
+				int box = boxes[i];
+				if (y1[box]<=y+EPSILON && y1[box]>result && covers(x0[box], x1[box], x) && covers(z0[box], z1[box], z)) {
+					result = y1[box];
+				}
+			}
+			if (result>=r*cellWidth) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Move the point back along the length to the nearest box, or the wall
+	 */
+	private double projectLength(double x, double y, double z) {
+		double result = 0;
+		int r = row(y);
+		int l = layer(z);
+		for (int c=column(x); c>=0; c--) {
+			int cell = cell(c, r, l);
+			int[] boxes = cellBoxes[cell];
+			for (int i=0; i<cellBoxCount[cell]; i++) {
+				int box = boxes[i];
+				if (x1[box]<=x+EPSILON && x1[box]>result && covers(y0[box], y1[box], y) && covers(z0[box], z1[box], z)) {
+					result = x1[box];
+				}
+			}
+			if (result>=c*cellLength) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check if the position is within the side of a box, including its start but not its end
+	 */
+	private static boolean covers(double start, double end, double position) {
+		return start<=position+EPSILON && position<end-EPSILON;
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min(columns-1, (int) (x/cellLength)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows-1, (int) (y/cellWidth)));
+	}
+
+	private int layer(double z) {
+		return Math.max(0, Math.min(layers-1, (int) (z/cellHeight)));
+	}
+
+	private int cell(int column, int row, int layer) {
+		return (column*rows+row)*layers+layer;
+	}
+
+	int getPointCount() {
+		return points.size();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" points="+points.size();
+	}
+}
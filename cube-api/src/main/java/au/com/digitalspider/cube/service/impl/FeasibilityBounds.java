@@ -0,0 +1,122 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
+
+/**
+ * Cheap bounds on the cube space needed by a list of items, calculated once and then checked against each candidate
+ * cube space before it is packed. A candidate which fails a bound can never fit the items, but one which passes may
+ * still not fit.
+ */
+class FeasibilityBounds {
+
+	/**
+	 * Relative tolerance, so rounding errors in the totals do not reject a cube space that is an exact fit
+	 */
+	private static final double EPSILON = 1e-9;
+
+	private Orientation orientation;
+	/**
+	 * The items, oriented as they will be packed, with quantity
+	 */
+	private List<CubeItem> cubeList;
+	private double totalVolume;
+	private double totalWeight;
+	private double maxLength;
+	private double maxWidth;
+	private double maxHeight;
+	private double maxLongestSide;
+	private double maxSecondLongestSide;
+	private double maxShortestSide;
+
+	FeasibilityBounds(List<CubeItem> items, Orientation orientation) {
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+		this.orientation = orientation;
+		this.cubeList = new ArrayList<CubeItem>(items.size());
+		for (CubeItem cube : items) {
+			if (orientation==Orientation.VERTICAL) {
+				cube = cube.orientateVertically();
+			}
+			cubeList.add(cube);
+			totalVolume += cube.length*cube.width*cube.height*cube.quantity;
+			totalWeight += cube.weight*cube.quantity;
+			maxLength = Math.max(maxLength, cube.length);
+			maxWidth = Math.max(maxWidth, cube.width);
+			maxHeight = Math.max(maxHeight, cube.height);
+			maxLongestSide = Math.max(maxLongestSide, cube.longestSide());
+			maxSecondLongestSide = Math.max(maxSecondLongestSide, cube.secondLongestSide());
+			maxShortestSide = Math.max(maxShortestSide, cube.shortestSide());
+		}
+	}
+
+	/**
+	 * Check the bounds against the given cube space.
+	 *
+	 * @param space the candidate cube space, with length, width, height and weight
+	 * @return {@link PlacementResult#FITTED} if the items may fit, otherwise the bound which failed
+	 */
+	PlacementResult check(CubeItem space) {
+		if (space.weight>0 && totalWeight>space.weight*(1+EPSILON)) {
+			return PlacementResult.EXCEEDS_WEIGHT;
+		}
+		if (totalVolume>space.length*space.width*space.height*(1+EPSILON)) {
+			return PlacementResult.EXCEEDS_VOLUME;
+		}
+		if (maxLongestSide>space.longestSide() || maxSecondLongestSide>space.secondLongestSide() || maxShortestSide>space.shortestSide()) {
+			return PlacementResult.NO_SPACE;
+		}
+		if (orientation==Orientation.ANY) {
+			return PlacementResult.FITTED;
+		}
+
+		// The items cannot be rotated, so each dimension must fit
+		if (maxLength>space.length) {
+			return PlacementResult.EXCEEDS_LENGTH;
+		}
+		if (maxWidth>space.width) {
+			return PlacementResult.EXCEEDS_WIDTH;
+		}
+		if (maxHeight>space.height) {
+			return PlacementResult.EXCEEDS_HEIGHT;
+		}
+
+		// Any two items longer than half the space in two dimensions cannot be side by side in either of them,
+		// so must be placed one after the other in the third dimension.
+		double halfLength = space.length/2;
+		double halfWidth = space.width/2;
+		double halfHeight = space.height/2;
+		double stackedHeight = 0;
+		double stackedLength = 0;
+		double stackedWidth = 0;
+		for (CubeItem cube : cubeList) {
+			boolean longCube = cube.length>halfLength;
+			boolean wideCube = cube.width>halfWidth;
+			boolean highCube = cube.height>halfHeight;
+			if (longCube && wideCube) {
+				stackedHeight += cube.height*cube.quantity;
+			}
+			if (wideCube && highCube) {
+				stackedLength += cube.length*cube.quantity;
+			}
+			if (longCube && highCube) {
+				stackedWidth += cube.width*cube.quantity;
+			}
+		}
+		if (stackedHeight>space.height*(1+EPSILON)) {
+			return PlacementResult.EXCEEDS_HEIGHT;
+		}
+		if (stackedLength>space.length*(1+EPSILON)) {
+			return PlacementResult.EXCEEDS_LENGTH;
+		}
+		if (stackedWidth>space.width*(1+EPSILON)) {
+			return PlacementResult.EXCEEDS_WIDTH;
+		}
+		return PlacementResult.FITTED;
+	}
+}
@@ -0,0 +1,182 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
+import au.com.digitalspider.cube.service.PackingStrategy;
+
+/**
+ * A {@link PackingStrategy} for pallet loads, where a few cube lines each have many cubes. Each line is packed in
+ * layers of the {@link LayerPattern} with the most cubes of its footprint, and the layers are stacked up the height.
+ * The patterns are held by the {@link LayerPatternCache} shared by all requests, so a repeated footprint is only
+ * calculated once, and the cost of a packing is then that of stacking the layers and creating the cube spaces.
+ *
+ * {@link Orientation#ANY} chooses the side of each cube that faces up which gives the lowest stack of its layers, and
+ * lets the cubes turn within a layer. The full layers of all lines are stacked first, highest cubes first, and then
+ * the partial layers. The space left beside a partial layer is not used by the other lines, so mixed loads with many
+ * partial layers are better packed by the other strategies. The result holds a cube space for each cube, at its x, y
+ * and z, as {@link ExtremePointCubingService} does.
+ *
+ * The cubeList given is not modified, and the pattern cache is synchronized, so the service is safe for concurrent use.
+ */
+@Service
+public class LayerCubingService implements PackingStrategy {
+
+	public static Logger LOG = Logger.getLogger(LayerCubingService.class);
+
+	public static final String NAME = "layer";
+
+	@Autowired
+	private LayerPatternCache patternCache = new LayerPatternCache();
+
+	/**
+	 * The layers of a cube line, the cubes facing up with the height
+	 */
+	static class LineLayers {
+		final CubeItem cube;
+		final LayerPattern pattern;
+		final double height;
+
+		LineLayers(CubeItem cube, LayerPattern pattern, double height) {
+			this.cube = cube;
+			this.pattern = pattern;
+			this.height = height;
+		}
+
+		int getLayerCount() {
+			return (cube.quantity+pattern.count-1)/pattern.count;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * The patterns are usually cached, leaving the stacking of each cube
+	 */
+	@Override
+	public long estimateNanos(int cubeCount) {
+		return 50000L+300L*cubeCount;
+	}
+
+	@Override
+	public double getExpectedQuality() {
+		return 65;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight) throws Exception {
+		return calculateCubeSpace(cubeList,maxLength,maxWidth,maxHeight,maxWeight,null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		List<CubeItem> sortedList = new ArrayList<CubeItem>(cubeList.size());
+		for (CubeItem cube : cubeList) {
+			if (cube.quantity>0) {
+				sortedList.add(cube.copy());
+			}
+		}
+		Collections.sort(sortedList);
+
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+
+		List<LineLayers> lines = new ArrayList<LineLayers>(sortedList.size());
+		for (CubeItem cube : sortedList) {
+			lines.add(getLineLayers(cube, orientation, maxLength, maxWidth, maxHeight));
+		}
+
+		BoxPacking packing = new BoxPacking(maxLength, maxWidth, maxHeight, maxWeight);
+		// The full layers, then the partial layers on top
+		for (LineLayers line : lines) {
+			for (int layer=0; layer<line.cube.quantity/line.pattern.count; layer++) {
+				addLayer(packing, line, line.pattern.count);
+			}
+		}
+		for (LineLayers line : lines) {
+			if (line.cube.quantity%line.pattern.count>0) {
+				addLayer(packing, line, line.cube.quantity%line.pattern.count);
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Packed "+packing);
+		}
+		return packing.toCubeSpace();
+	}
+
+	/**
+	 * Add a layer of the line on top of the packing
+	 *
+	 * @param count the number of cubes in the layer, the first positions of the pattern
+	 */
+	private void addLayer(BoxPacking packing, LineLayers line, int count) throws Exception {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("Cubing interrupted. "+packing);
+		}
+		double z = packing.usedHeight;
+		if (z+line.height>packing.maxHeight+BoxPacking.EPSILON) {
+			throw new Exception(packing+". Cube does not fit! result="+PlacementResult.NO_SPACE+" "+line.cube);
+		}
+		LayerPattern pattern = line.pattern;
+		for (int i=0; i<count; i++) {
+			if (!packing.fitsWeight(line.cube)) {
+				throw new Exception(packing+". Cube does not fit! result="+PlacementResult.EXCEEDS_WEIGHT+" "+line.cube);
+			}
+			packing.addBox(pattern.x[i], pattern.y[i], z, pattern.boxLength[i], pattern.boxWidth[i], line.height, line.cube);
+		}
+	}
+
+	/**
+	 * Choose the side of the cube facing up which gives the lowest stack of layers, of those the orientation allows
+	 */
+	LineLayers getLineLayers(CubeItem cube, Orientation orientation, double maxLength, double maxWidth, double maxHeight) throws Exception {
+		LineLayers best = null;
+		double previousHeight = -1;
+		for (double[] rotation : BoxPacking.getRotations(cube, orientation, maxLength, maxWidth, maxHeight)) {
+			if (rotation[2]==previousHeight) {
+				// The same footprint turned, which the pattern already allows for
+				continue;
+			}
+			previousHeight = rotation[2];
+			LayerPattern pattern = patternCache.getPattern(maxLength, maxWidth, rotation[0], rotation[1], orientation==Orientation.ANY);
+			if (pattern.count==0) {
+				continue;
+			}
+			LineLayers lineLayers = new LineLayers(cube, pattern, rotation[2]);
+			if (best==null || lineLayers.getLayerCount()*lineLayers.height<best.getLayerCount()*best.height) {
+				best = lineLayers;
+			}
+		}
+		if (best==null) {
+			throw new Exception("Invalid cube exceeds constraints. Will never fit! "+cube);
+		}
+		return best;
+	}
+
+	public LayerPatternCache getPatternCache() {
+		return patternCache;
+	}
+
+	public void setPatternCache(LayerPatternCache patternCache) {
+		this.patternCache = patternCache;
+	}
+}
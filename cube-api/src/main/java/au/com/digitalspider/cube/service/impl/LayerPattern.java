@@ -0,0 +1,218 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The positions of the most boxes of one footprint which fit in a layer of a container, for the {@link LayerCubingService}.
+ * The pattern is found by dividing the container with guillotine cuts, each cut across the whole of the block it
+ * divides, and filling each block with a grid of boxes all facing the same way. The blocks are found over the raster
+ * points, the lengths made by adding together box lengths and widths, as a cut anywhere else leaves space no box fits.
+ *
+ * The positions are ordered along the length, then the width, so the first positions of a pattern make a partial
+ * layer packed into one end of the container. Patterns do not change once calculated, so can be shared between threads.
+ */
+class LayerPattern {
+
+	/**
+	 * The most raster points along each side. Beyond this the cuts are only tried at multiples of the box length or
+	 * width, and then not at all, to bound the time to calculate a pattern.
+	 */
+	static final int MAX_RASTER_POINTS = 150;
+
+	private static final byte GRID = 0;
+	private static final byte GRID_ROTATED = 1;
+	private static final byte LENGTH_CUT = 2;
+	private static final byte WIDTH_CUT = 3;
+
+	final double maxLength;
+	final double maxWidth;
+	final double length;
+	final double width;
+	final boolean rotate;
+
+	// The boxes, from x,y to x+boxLength,y+boxWidth
+	final int count;
+	final double[] x;
+	final double[] y;
+	final double[] boxLength;
+	final double[] boxWidth;
+
+	private LayerPattern(double maxLength, double maxWidth, double length, double width, boolean rotate, List<double[]> boxes) {
+		this.maxLength = maxLength;
+		this.maxWidth = maxWidth;
+		this.length = length;
+		this.width = width;
+		this.rotate = rotate;
+		count = boxes.size();
+		x = new double[count];
+		y = new double[count];
+		boxLength = new double[count];
+		boxWidth = new double[count];
+		for (int i=0; i<count; i++) {
+			double[] box = boxes.get(i);
+			x[i] = box[0];
+			y[i] = box[1];
+			boxLength[i] = box[2];
+			boxWidth[i] = box[3];
+		}
+	}
+
+	/**
+	 * Calculate the pattern with the most boxes
+	 *
+	 * @param maxLength the length of the container
+	 * @param maxWidth the width of the container
+	 * @param length the length of the box
+	 * @param width the width of the box
+	 * @param rotate true if the box may also be placed with its length along the width of the container
+	 */
+	static LayerPattern calculate(double maxLength, double maxWidth, double length, double width, boolean rotate) {
+		double[] rasterX = getRasterPoints(maxLength, length, rotate ? width : 0);
+		double[] rasterY = getRasterPoints(maxWidth, width, rotate ? length : 0);
+		boolean cut = rasterX.length<=MAX_RASTER_POINTS && rasterY.length<=MAX_RASTER_POINTS;
+		if (!cut) {
+			rasterX = new double[] {maxLength};
+			rasterY = new double[] {maxWidth};
+		}
+
+		// The best pattern of each block of rasterX[i] by rasterY[j], as either a grid, or a cut into two blocks
+		int[][] counts = new int[rasterX.length][rasterY.length];
+		byte[][] choices = new byte[rasterX.length][rasterY.length];
+		int[][] cuts = new int[rasterX.length][rasterY.length];
+		for (int i=0; i<rasterX.length; i++) {
+			for (int j=0; j<rasterY.length; j++) {
+				double blockLength = rasterX[i];
+				double blockWidth = rasterY[j];
+				counts[i][j] = fit(blockLength, length)*fit(blockWidth, width);
+				choices[i][j] = GRID;
+				if (rotate && fit(blockLength, width)*fit(blockWidth, length)>counts[i][j]) {
+					counts[i][j] = fit(blockLength, width)*fit(blockWidth, length);
+					choices[i][j] = GRID_ROTATED;
+				}
+				// The cuts are symmetric, so only the cuts in the first half are tried
+				for (int k=1; k<i && rasterX[k]<=blockLength/2+BoxPacking.EPSILON; k++) {
+					int count = counts[k][j]+counts[floorIndex(rasterX, blockLength-rasterX[k])][j];
+					if (count>counts[i][j]) {
+						counts[i][j] = count;
+						choices[i][j] = LENGTH_CUT;
+						cuts[i][j] = k;
+					}
+				}
+				for (int k=1; k<j && rasterY[k]<=blockWidth/2+BoxPacking.EPSILON; k++) {
+					int count = counts[i][k]+counts[i][floorIndex(rasterY, blockWidth-rasterY[k])];
+					if (count>counts[i][j]) {
+						counts[i][j] = count;
+						choices[i][j] = WIDTH_CUT;
+						cuts[i][j] = k;
+					}
+				}
+			}
+		}
+
+		List<double[]> boxes = new ArrayList<double[]>(counts[rasterX.length-1][rasterY.length-1]);
+		addBoxes(boxes, rasterX, rasterY, choices, cuts, rasterX.length-1, rasterY.length-1, 0, 0, length, width);
+		Collections.sort(boxes, new Comparator<double[]>() {
+			@Override
+			public int compare(double[] boxLHS, double[] boxRHS) {
+				int result = Double.compare(boxLHS[0], boxRHS[0]);
+				return result!=0 ? result : Double.compare(boxLHS[1], boxRHS[1]);
+			}
+		});
+		return new LayerPattern(maxLength, maxWidth, length, width, rotate, boxes);
+	}
+
+	/**
+	 * Add the boxes of the block of rasterX[i] by rasterY[j] at x,y
+	 */
+	private static void addBoxes(List<double[]> boxes, double[] rasterX, double[] rasterY, byte[][] choices, int[][] cuts, int i, int j, double x, double y, double length, double width) {
+		switch (choices[i][j]) {
+			case LENGTH_CUT:
+				int k = cuts[i][j];
+				addBoxes(boxes, rasterX, rasterY, choices, cuts, k, j, x, y, length, width);
+				addBoxes(boxes, rasterX, rasterY, choices, cuts, floorIndex(rasterX, rasterX[i]-rasterX[k]), j, x+rasterX[k], y, length, width);
+				break;
+			case WIDTH_CUT:
+				k = cuts[i][j];
+				addBoxes(boxes, rasterX, rasterY, choices, cuts, i, k, x, y, length, width);
+				addBoxes(boxes, rasterX, rasterY, choices, cuts, i, floorIndex(rasterY, rasterY[j]-rasterY[k]), x, y+rasterY[k], length, width);
+				break;
+			default:
+				double boxLength = choices[i][j]==GRID ? length : width;
+				double boxWidth = choices[i][j]==GRID ? width : length;
+				int columns = fit(rasterX[i], boxLength);
+				int rows = fit(rasterY[j], boxWidth);
+				for (int column=0; column<columns; column++) {
+					for (int row=0; row<rows; row++) {
+						boxes.add(new double[] {x+column*boxLength, y+row*boxWidth, boxLength, boxWidth});
+					}
+				}
+		}
+	}
+
+	/**
+	 * @return the number of boxes of the size which fit along the side
+	 */
+	private static int fit(double side, double size) {
+		return (int) Math.floor(side/size+BoxPacking.EPSILON);
+	}
+
+	/**
+	 * Find the distinct lengths up to max made by adding together the sizes, in order, starting with 0
+	 *
+	 * @param size2 the second size, or 0 if there is only one
+	 */
+	static double[] getRasterPoints(double max, double size1, double size2) {
+		double[] points = new double[MAX_RASTER_POINTS+1];
+		int count = 0;
+		for (int a=0; a<=fit(max, size1) && count<points.length; a++) {
+			int bMax = size2>0 ? fit(max-a*size1, size2) : 0;
+			for (int b=0; b<=bMax && count<points.length; b++) {
+				points[count++] = a*size1+b*size2;
+			}
+		}
+		if (count>MAX_RASTER_POINTS && size2>0) {
+			// Too many combinations, so only multiples of each size
+			points = new double[fit(max, size1)+fit(max, size2)+2];
+			count = 0;
+			for (int a=0; a<=fit(max, size1); a++) {
+				points[count++] = a*size1;
+			}
+			for (int b=1; b<=fit(max, size2); b++) {
+				points[count++] = b*size2;
+			}
+		}
+		Arrays.sort(points, 0, count);
+		int distinct = 0;
+		for (int i=0; i<count; i++) {
+			if (distinct==0 || points[i]>points[distinct-1]+BoxPacking.EPSILON) {
+				points[distinct++] = points[i];
+			}
+		}
+		// The whole side is always a block, so the grid of the container is tried even when no cuts are
+		if (points[distinct-1]<max-BoxPacking.EPSILON) {
+			points = Arrays.copyOf(points, Math.max(points.length, distinct+1));
+			points[distinct++] = max;
+		}
+		return Arrays.copyOf(points, distinct);
+	}
+
+	/**
+	 * @return the index of the largest point no greater than the value
+	 */
+	private static int floorIndex(double[] points, double value) {
+		int index = Arrays.binarySearch(points, value+BoxPacking.EPSILON);
+		if (index<0) {
+			index = -index-2;
+		}
+		return Math.max(0, index);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"["+length+"x"+width+(rotate ? " rotated" : "")+" in "+maxLength+"x"+maxWidth+"] count="+count;
+	}
+}
@@ -0,0 +1,196 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * The {@link LayerPattern}s calculated by this process, shared by all requests, so a container and item footprint seen
+ * before is a lookup rather than a calculation. The cache is bounded, evicting the least recently used pattern, and
+ * keyed by the container length and width, the item length and width, and whether the item may turn. When the item
+ * may turn, its length and width are in either order, so both share a pattern.
+ *
+ * The cache can be warmed up at startup from the file set by the property "cube.layer.warmup", in CSV format
+ * "containerLength,containerWidth,itemLength,itemWidth,rotate". Blank lines, comment lines starting with "#", and the
+ * header line starting with "containerLength" are skipped.
+ */
+@Component
+public class LayerPatternCache {
+
+	public static Logger LOG = Logger.getLogger(LayerPatternCache.class);
+
+	private static final int FIELD_COUNT = 5;
+
+	private ResultCache<Key, LayerPattern> cache = new ResultCache<Key, LayerPattern>(1000);
+	private String warmUpFile;
+
+	/**
+	 * The container and item footprint of a pattern
+	 */
+	static class Key {
+		private final double maxLength;
+		private final double maxWidth;
+		private final double length;
+		private final double width;
+		private final boolean rotate;
+		private final int hashCode;
+
+		Key(double maxLength, double maxWidth, double length, double width, boolean rotate) {
+			this.maxLength = maxLength;
+			this.maxWidth = maxWidth;
+			// A turned item has the same patterns, so the longest side is always first
+			this.length = rotate ? Math.max(length, width) : length;
+			this.width = rotate ? Math.min(length, width) : width;
+			this.rotate = rotate;
+			long bits = Double.doubleToLongBits(this.maxLength);
+			bits = 31*bits+Double.doubleToLongBits(this.maxWidth);
+			bits = 31*bits+Double.doubleToLongBits(this.length);
+			bits = 31*bits+Double.doubleToLongBits(this.width);
+			hashCode = 31*(int) (bits^(bits>>>32))+(rotate ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this==obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return maxLength==other.maxLength && maxWidth==other.maxWidth && length==other.length && width==other.width && rotate==other.rotate;
+		}
+	}
+
+	/**
+	 * Load the patterns of the warm up file, if one is set
+	 */
+	@PostConstruct
+	public void init() {
+		if (warmUpFile==null || warmUpFile.isEmpty()) {
+			return;
+		}
+		Path path = Paths.get(warmUpFile);
+		try {
+			warmUp(Files.newBufferedReader(path, CubeItemCSVReader.UTF8));
+		} catch (IOException e) {
+			// The patterns are calculated when first used instead
+			LOG.warn("Could not warm up the layer patterns from "+path+". ERROR: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Calculate the pattern of each line of the CSV, if not already cached. Invalid lines are logged and skipped.
+	 *
+	 * @return the number of patterns calculated
+	 */
+	public int warmUp(Reader reader) throws IOException {
+		long startTime = System.nanoTime();
+		int count = 0;
+		try (BufferedReader lineReader = new BufferedReader(reader)) {
+			String line;
+			while ((line = lineReader.readLine())!=null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#") || line.startsWith("containerLength")) {
+					continue;
+				}
+				String[] values = line.split(",");
+				if (values.length!=FIELD_COUNT) {
+					LOG.warn("Skipping layer pattern without "+FIELD_COUNT+" values: "+line);
+					continue;
+				}
+				try {
+					double maxLength = Double.parseDouble(values[0].trim());
+					double maxWidth = Double.parseDouble(values[1].trim());
+					double length = Double.parseDouble(values[2].trim());
+					double width = Double.parseDouble(values[3].trim());
+					boolean rotate = Boolean.parseBoolean(values[4].trim());
+					if (maxLength<=0 || maxWidth<=0 || length<=0 || width<=0) {
+						throw new NumberFormatException("sizes must be positive");
+					}
+					Key key = new Key(maxLength, maxWidth, length, width, rotate);
+					if (cache.get(key)==null) {
+						cache.put(key, LayerPattern.calculate(maxLength, maxWidth, key.length, key.width, rotate));
+						count++;
+					}
+				} catch (NumberFormatException e) {
+					LOG.warn("Skipping invalid layer pattern: "+line+". ERROR: "+e.getMessage());
+				}
+			}
+		}
+		LOG.info("Warmed up "+count+" layer patterns in "+(System.nanoTime()-startTime)/1000000+"ms. "+cache);
+		return count;
+	}
+
+	/**
+	 * Get the pattern from the cache, calculating it if it is not cached
+	 *
+	 * @param rotate true if the item may also be placed with its length along the width of the container
+	 */
+	public LayerPattern getPattern(double maxLength, double maxWidth, double length, double width, boolean rotate) {
+		Key key = new Key(maxLength, maxWidth, length, width, rotate);
+		LayerPattern pattern = cache.get(key);
+		if (pattern==null) {
+			pattern = LayerPattern.calculate(maxLength, maxWidth, key.length, key.width, rotate);
+			cache.put(key, pattern);
+		}
+		return pattern;
+	}
+
+	public ResultCache<?, ?> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set the maximum number of cached layer patterns, by the property "cube.layer.cacheSize". Defaults to 1000, and 0 disables the cache.
+	 */
+	@Value("${cube.layer.cacheSize:1000}")
+	public void setCacheSize(int cacheSize) {
+		cache = new ResultCache<Key, LayerPattern>(cacheSize);
+	}
+
+	/**
+	 * Set the file to warm up the cache from, by the property "cube.layer.warmup". Defaults to none.
+	 */
+	@Value("${cube.layer.warmup:}")
+	public void setWarmUpFile(String warmUpFile) {
+		this.warmUpFile = warmUpFile;
+	}
+
+	/**
+	 * Show the size and hit rate of the cache in the registry, as "cube.layer.patterns.size" and "cube.layer.patterns.hitPercent"
+	 */
+	@Autowired(required=false)
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		metricRegistry.register("cube.layer.patterns.size", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return cache.size();
+			}
+		});
+		metricRegistry.register("cube.layer.patterns.hitPercent", new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return cache.getHitPercent();
+			}
+		});
+	}
+}
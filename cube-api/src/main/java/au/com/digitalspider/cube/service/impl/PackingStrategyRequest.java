@@ -0,0 +1,73 @@
+package au.com.digitalspider.cube.service.impl;
+
+/**
+ * The strategy and latency budget requested for the calculations made by a thread, overriding the defaults of the
+ * {@link PackingStrategyServiceImpl}. Set for each web request by the PackingStrategyFilter, and passed on to the
+ * threads which calculate for the request.
+ *
+ * The budget is for the whole request, from when it was started, so a request which makes several calculations, such
+ * as slotting into several spaces, shares the one deadline between them.
+ */
+public class PackingStrategyRequest {
+
+	private static final ThreadLocal<PackingStrategyRequest> requested = new ThreadLocal<PackingStrategyRequest>();
+
+	private final String strategy;
+	private final long budgetMillis;
+	private final long startNanos;
+
+	/**
+	 * @param strategy the strategy name, {@link au.com.digitalspider.cube.service.PackingStrategyService#AUTO}, or null for the default
+	 * @param budgetMillis the time allowed, or 0 for the default
+	 */
+	public PackingStrategyRequest(String strategy, long budgetMillis) {
+		this.strategy = strategy;
+		this.budgetMillis = budgetMillis;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return the same strategy and budget, with the budget starting now, for a request made on behalf of this one
+	 */
+	public PackingStrategyRequest restart() {
+		return new PackingStrategyRequest(strategy, budgetMillis);
+	}
+
+	/**
+	 * Request the strategy for the calculations made by the current thread, or null to use the defaults
+	 */
+	public static void setRequested(PackingStrategyRequest request) {
+		if (request==null) {
+			requested.remove();
+		} else {
+			requested.set(request);
+		}
+	}
+
+	/**
+	 * @return the strategy requested for the current thread, or null if none was
+	 */
+	public static PackingStrategyRequest getRequested() {
+		return requested.get();
+	}
+
+	public String getStrategy() {
+		return strategy;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the request was started, from which its budget is counted
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	@Override
+	public String toString() {
+		return (strategy==null ? "" : strategy)+(budgetMillis>0 ? "/"+budgetMillis+"ms" : "");
+	}
+}
@@ -0,0 +1,218 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.service.PackingStrategy;
+import au.com.digitalspider.cube.service.PackingStrategyService;
+
+/**
+ * Chooses between all the {@link PackingStrategy} beans. The strategy is chosen by the {@link PackingStrategyRequest}
+ * of the current thread, or else the property "cube.cubing.engine". With {@link #AUTO}, the best quality strategy
+ * expected to finish within the budget is chosen, the budget being from the request or the property "cube.cubing.budget".
+ *
+ * The estimates of each strategy are calibrated by the times recorded, as the estimates are not for any one machine.
+ */
+@Service
+public class PackingStrategyServiceImpl implements PackingStrategyService {
+
+	public static Logger LOG = Logger.getLogger(PackingStrategyServiceImpl.class);
+
+	/**
+	 * The weight of each recorded time in the calibration of the estimates
+	 */
+	static final double CALIBRATION_WEIGHT = 0.1;
+	static final double MIN_CALIBRATION = 0.01;
+	static final double MAX_CALIBRATION = 100;
+
+	private Map<String, Calibration> calibrations = Collections.emptyMap();
+	private List<PackingStrategy> strategies = Collections.emptyList();
+	private String defaultStrategy = CubingServiceImpl.NAME;
+	private long defaultBudgetMillis;
+
+	/**
+	 * The ratio of the actual times of a strategy to its estimates
+	 */
+	static class Calibration {
+		private double factor = 1;
+
+		synchronized double getFactor() {
+			return factor;
+		}
+
+		synchronized void record(double ratio) {
+			ratio = Math.max(MIN_CALIBRATION, Math.min(MAX_CALIBRATION, ratio));
+			factor = factor*(1-CALIBRATION_WEIGHT)+ratio*CALIBRATION_WEIGHT;
+		}
+	}
+
+	public PackingStrategyServiceImpl() {
+	}
+
+	public PackingStrategyServiceImpl(List<PackingStrategy> strategies) {
+		setStrategies(strategies);
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!AUTO.equals(defaultStrategy)) {
+			getStrategy(defaultStrategy);
+		}
+		LOG.info("strategies="+calibrations.keySet()+", defaultStrategy="+defaultStrategy+", defaultBudgetMillis="+defaultBudgetMillis);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<PackingStrategy> getStrategies() {
+		return strategies;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public PackingStrategy getStrategy(String name) {
+		for (PackingStrategy strategy : strategies) {
+			if (strategy.getName().equals(name)) {
+				return strategy;
+			}
+		}
+		throw new IllegalArgumentException("Unknown packing strategy: "+name+". Use "+AUTO+" or one of "+calibrations.keySet());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public PackingStrategy selectStrategy(int cubeCount) {
+		PackingStrategyRequest request = PackingStrategyRequest.getRequested();
+		String name = defaultStrategy;
+		long budgetMillis = defaultBudgetMillis;
+		if (request!=null) {
+			if (request.getBudgetMillis()>0) {
+				// A budget on its own asks for the strategy to be chosen by it
+				name = AUTO;
+				budgetMillis = request.getBudgetMillis();
+			}
+			if (request.getStrategy()!=null) {
+				name = request.getStrategy();
+			}
+		}
+		if (AUTO.equals(name)) {
+			return selectStrategy(cubeCount, budgetMillis);
+		}
+		return getStrategy(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public PackingStrategy selectStrategy(int cubeCount, long budgetMillis) {
+		long budgetNanos = budgetMillis*1000000L;
+		PackingStrategy best = null;
+		long bestNanos = 0;
+		PackingStrategy fastest = null;
+		long fastestNanos = 0;
+		for (PackingStrategy strategy : strategies) {
+			long nanos = getEstimatedNanos(strategy, cubeCount);
+			if (fastest==null || nanos<fastestNanos) {
+				fastest = strategy;
+				fastestNanos = nanos;
+			}
+			if (budgetMillis>0 && nanos>budgetNanos) {
+				continue;
+			}
+			if (best==null || strategy.getExpectedQuality()>best.getExpectedQuality()
+					|| (strategy.getExpectedQuality()==best.getExpectedQuality() && nanos<bestNanos)) {
+				best = strategy;
+				bestNanos = nanos;
+			}
+		}
+		if (best==null) {
+			best = fastest;
+		}
+		if (best==null) {
+			throw new IllegalStateException("No packing strategies available");
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Selected "+best.getName()+" for cubeCount="+cubeCount+", budgetMillis="+budgetMillis);
+		}
+		return best;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getEstimatedNanos(PackingStrategy strategy, int cubeCount) {
+		Calibration calibration = calibrations.get(strategy.getName());
+		long nanos = strategy.estimateNanos(cubeCount);
+		return calibration==null ? nanos : (long) (nanos*calibration.getFactor());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void recordTime(PackingStrategy strategy, int cubeCount, long nanos) {
+		Calibration calibration = calibrations.get(strategy.getName());
+		long estimate = strategy.estimateNanos(cubeCount);
+		if (calibration!=null && estimate>0) {
+			calibration.record((double) nanos/estimate);
+		}
+	}
+
+	/**
+	 * Set the strategies to choose between, which must have different names
+	 */
+	@Autowired
+	public void setStrategies(List<PackingStrategy> strategies) {
+		Map<String, Calibration> calibrations = new LinkedHashMap<String, Calibration>();
+		for (PackingStrategy strategy : strategies) {
+			if (calibrations.put(strategy.getName(), new Calibration())!=null) {
+				throw new IllegalArgumentException("Duplicate packing strategy: "+strategy.getName());
+			}
+		}
+		this.strategies = Collections.unmodifiableList(new ArrayList<PackingStrategy>(strategies));
+		this.calibrations = calibrations;
+	}
+
+	public String getDefaultStrategy() {
+		return defaultStrategy;
+	}
+
+	/**
+	 * Set the strategy used when none is requested, by the property "cube.cubing.engine". Defaults to "tree" for
+	 * the {@link CubingServiceImpl}, or {@link #AUTO} to choose by the budget.
+	 */
+	@Value("${cube.cubing.engine:"+CubingServiceImpl.NAME+"}")
+	public void setDefaultStrategy(String defaultStrategy) {
+		this.defaultStrategy = defaultStrategy;
+	}
+
+	public long getDefaultBudgetMillis() {
+		return defaultBudgetMillis;
+	}
+
+	/**
+	 * Set the time allowed for {@link #AUTO} when no budget is requested, by the property "cube.cubing.budget" in
+	 * milliseconds. Defaults to 0, for no limit.
+	 */
+	@Value("${cube.cubing.budget:0}")
+	public void setDefaultBudgetMillis(long defaultBudgetMillis) {
+		this.defaultBudgetMillis = defaultBudgetMillis;
+	}
+}
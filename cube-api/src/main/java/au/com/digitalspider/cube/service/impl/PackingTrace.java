@@ -0,0 +1,169 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+
+/**
+ * Records what the packer does during one calculation of {@link CubingServiceImpl}, as a list of {@link Entry}s which
+ * are logged together at INFO when the calculation finishes, one line of key=value pairs per entry.
+ *
+ * Tracing is off by default. A calculation is traced if it is sampled, by the property "cube.trace.sampleRate", or if
+ * tracing has been requested for the current thread using {@link #setRequested(Boolean)}, e.g. for a single http request.
+ * When a calculation is not traced the packer has no trace, and only checks that its trace is null, so nothing is
+ * recorded or logged.
+ */
+public class PackingTrace {
+
+	public static Logger LOG = Logger.getLogger(PackingTrace.class);
+
+	public enum Event {
+		/** A cube line is about to be added */
+		ADDING,
+		/** All of a cube line has been added */
+		ADDED,
+		/** Some of a cube line was added as a block into the empty space. The count is the number added. */
+		BLOCK,
+		/** A cube space was re-architectured. The count is the cube space. */
+		REARCHITECTURE,
+		/** The cubes could not be packed */
+		FAILED
+	}
+
+	/**
+	 * A single traced event, with the state of the {@link PackingTree} at the time
+	 */
+	public static class Entry {
+		public final Event event;
+		public final long nanos;
+		public final String cubeId;
+		public final int count;
+		public final int spaces;
+		public final int cubes;
+		public final double length;
+		public final double width;
+		public final double height;
+		public final String message;
+
+		Entry(Event event, long nanos, String cubeId, int count, PackingTree tree, String message) {
+			this.event = event;
+			this.nanos = nanos;
+			this.cubeId = cubeId;
+			this.count = count;
+			this.spaces = tree.spaceCount;
+			this.cubes = tree.placementCount;
+			this.length = tree.getTotalLength(PackingTree.ROOT);
+			this.width = tree.getTotalWidth(PackingTree.ROOT);
+			this.height = tree.getTotalHeight(PackingTree.ROOT);
+			this.message = message;
+		}
+	}
+
+	private static final AtomicLong traceCount = new AtomicLong();
+	private static final ThreadLocal<Boolean> requested = new ThreadLocal<Boolean>();
+
+	private final long id = traceCount.incrementAndGet();
+	private final long startNanos = System.nanoTime();
+	/**
+	 * Describes the calculation being traced
+	 */
+	String name;
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	PackingTrace() {
+	}
+
+	/**
+	 * Start a trace for a calculation, if the current thread requested one, or else if the calculation is sampled.
+	 *
+	 * @param sampleRate the fraction of calculations to trace, from 0 for none to 1 for all
+	 * @return the new trace, or null if the calculation is not traced
+	 */
+	static PackingTrace start(double sampleRate) {
+		Boolean traced = requested.get();
+		if (traced==null) {
+			traced = sampleRate>0 && (sampleRate>=1 || ThreadLocalRandom.current().nextDouble()<sampleRate);
+		}
+		return traced ? new PackingTrace() : null;
+	}
+
+	/**
+	 * Request tracing of the calculations made by the current thread, overriding the sample rate.
+	 *
+	 * @param traced true to trace every calculation, false to trace none, or null to clear the request and use the sample rate
+	 */
+	public static void setRequested(Boolean traced) {
+		if (traced==null) {
+			requested.remove();
+		} else {
+			requested.set(traced);
+		}
+	}
+
+	/**
+	 * @return whether the current thread requested tracing, or null if it has not
+	 */
+	public static Boolean getRequested() {
+		return requested.get();
+	}
+
+	/**
+	 * @return true if the current thread requested every calculation be traced
+	 */
+	public static boolean isRequested() {
+		return Boolean.TRUE.equals(requested.get());
+	}
+
+	void record(Event event, CubeItem cube, int count, PackingTree tree) {
+		entries.add(new Entry(event, System.nanoTime()-startNanos, cube==null ? null : cube.id, count, tree, null));
+	}
+
+	void failed(PackingTree tree, Exception e) {
+		entries.add(new Entry(Event.FAILED, System.nanoTime()-startNanos, null, 0, tree, e.getMessage()));
+	}
+
+	/**
+	 * Log the entries of this trace, for when the calculation has finished
+	 */
+	void log() {
+		if (!LOG.isInfoEnabled()) {
+			return;
+		}
+		StringBuilder buffer = new StringBuilder(128*(entries.size()+1));
+		buffer.append("trace=").append(id).append(" start ").append(name);
+		for (Entry entry : entries) {
+			buffer.append("\ntrace=").append(id);
+			buffer.append(" event=").append(entry.event);
+			buffer.append(" us=").append(entry.nanos/1000);
+			if (entry.cubeId!=null) {
+				buffer.append(" cube=").append(entry.cubeId);
+			}
+			if (entry.count!=0) {
+				buffer.append(" count=").append(entry.count);
+			}
+			buffer.append(" spaces=").append(entry.spaces);
+			buffer.append(" cubes=").append(entry.cubes);
+			buffer.append(" l=").append(entry.length);
+			buffer.append(" w=").append(entry.width);
+			buffer.append(" h=").append(entry.height);
+			if (entry.message!=null) {
+				buffer.append(" message=\"").append(entry.message).append('"');
+			}
+		}
+		LOG.info(buffer);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+}
@@ -0,0 +1,461 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.Arrays;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
+
+/**
+ * The working state of {@link CubingServiceImpl} while packing, held in primitive arrays rather than a graph of
+ * {@link CubeSpace} and {@link CubeItem} objects. Cube spaces, the items being packed, and the placements of items
+ * into cube spaces are each identified by an int index into their arrays.
+ *
+ * The cube spaces behave the same as {@link CubeSpace}, including the cached totals, and the tree is converted to a
+ * {@link CubeSpace} using {@link #toCubeSpace()} once packing is complete.
+ *
+ * Not thread safe, a new tree is created for each calculation.
+ */
+class PackingTree {
+
+	static final int NONE = -1;
+	static final int ROOT = 0;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Cube spaces
+	int spaceCount;
+	Orientation[] orientation;
+	double[] length;
+	double[] width;
+	double[] height;
+	double[] weight;
+	double[] maxLength;
+	double[] maxWidth;
+	double[] maxHeight;
+	double[] maxWeight;
+	boolean[] initialised;
+	/**
+	 * True if the cube space has been removed from its parent
+	 */
+	boolean[] detached;
+	int[] parent;
+	int[] firstChild;
+	int[] lastChild;
+	int[] nextSibling;
+	int[] previousSibling;
+	int[] firstPlacement;
+	int[] lastPlacement;
+	int[] cubeCount;
+
+	// Cached totals, see CubeSpace
+	private boolean[] totalsValid;
+	private double[] totalLength;
+	private double[] totalWidth;
+	private double[] totalHeight;
+	private double[] totalWeight;
+
+	// Items
+	int itemCount;
+	double[] itemLength;
+	double[] itemWidth;
+	double[] itemHeight;
+	double[] itemWeight;
+	int[] itemQuantity;
+	/**
+	 * The CubeItem each item was created from, used in the {@link CubeSpace#cubeList} of the result
+	 */
+	CubeItem[] itemSource;
+
+	// Placements of items into cube spaces, as a linked list per cube space
+	int placementCount;
+	int[] placementItem;
+	int[] nextPlacement;
+
+	/**
+	 * The trace of this calculation, or null if it is not traced
+	 */
+	PackingTrace trace;
+
+	/**
+	 * The number of times a cube space has been re-architectured, for the metrics of the calculation
+	 */
+	int rearchitectureCount;
+
+	/**
+	 * Why the last cube could not be packed, or null if the cubes have all been packed
+	 */
+	PlacementResult rejection;
+
+	/**
+	 * Create a new tree with a root cube space of the given dimensions
+	 */
+	PackingTree(double maxLength, double maxWidth, double maxHeight, double maxWeight) {
+		allocateSpaces(INITIAL_CAPACITY);
+		allocateItems(INITIAL_CAPACITY);
+		allocatePlacements(INITIAL_CAPACITY);
+		addSpace(NONE, maxWidth, maxLength, maxHeight, maxWeight);
+	}
+
+	private void allocateSpaces(int capacity) {
+		orientation = Arrays.copyOf(orientation==null ? new Orientation[0] : orientation, capacity);
+		length = copyOf(length, capacity);
+		width = copyOf(width, capacity);
+		height = copyOf(height, capacity);
+		weight = copyOf(weight, capacity);
+		maxLength = copyOf(maxLength, capacity);
+		maxWidth = copyOf(maxWidth, capacity);
+		maxHeight = copyOf(maxHeight, capacity);
+		maxWeight = copyOf(maxWeight, capacity);
+		initialised = copyOf(initialised, capacity);
+		detached = copyOf(detached, capacity);
+		parent = copyOf(parent, capacity);
+		firstChild = copyOf(firstChild, capacity);
+		lastChild = copyOf(lastChild, capacity);
+		nextSibling = copyOf(nextSibling, capacity);
+		previousSibling = copyOf(previousSibling, capacity);
+		firstPlacement = copyOf(firstPlacement, capacity);
+		lastPlacement = copyOf(lastPlacement, capacity);
+		cubeCount = copyOf(cubeCount, capacity);
+		totalsValid = copyOf(totalsValid, capacity);
+		totalLength = copyOf(totalLength, capacity);
+		totalWidth = copyOf(totalWidth, capacity);
+		totalHeight = copyOf(totalHeight, capacity);
+		totalWeight = copyOf(totalWeight, capacity);
+	}
+
+	private void allocateItems(int capacity) {
+		itemLength = copyOf(itemLength, capacity);
+		itemWidth = copyOf(itemWidth, capacity);
+		itemHeight = copyOf(itemHeight, capacity);
+		itemWeight = copyOf(itemWeight, capacity);
+		itemQuantity = copyOf(itemQuantity, capacity);
+		itemSource = Arrays.copyOf(itemSource==null ? new CubeItem[0] : itemSource, capacity);
+	}
+
+	private void allocatePlacements(int capacity) {
+		placementItem = copyOf(placementItem, capacity);
+		nextPlacement = copyOf(nextPlacement, capacity);
+	}
+
+	private static double[] copyOf(double[] array, int capacity) {
+		return array==null ? new double[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	private static int[] copyOf(int[] array, int capacity) {
+		return array==null ? new int[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	private static boolean[] copyOf(boolean[] array, int capacity) {
+		return array==null ? new boolean[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	/**
+	 * Add an item with the given dimensions, created from the source CubeItem.
+	 *
+	 * @return the index of the new item
+	 */
+	int addItem(CubeItem source, double length, double width, double height, double weight, int quantity) {
+		if (itemCount==itemLength.length) {
+			allocateItems(itemCount*2);
+		}
+		int item = itemCount++;
+		itemLength[item] = length;
+		itemWidth[item] = width;
+		itemHeight[item] = height;
+		itemWeight[item] = weight;
+		itemQuantity[item] = quantity;
+		itemSource[item] = source;
+		return item;
+	}
+
+	/**
+	 * Add a new cube space as the last child of the parent, with the same orientation rules and argument order as
+	 * {@link CubeSpace#CubeSpace(CubeSpace, double, double, double, double)}.
+	 *
+	 * @return the index of the new cube space
+	 */
+	int addSpace(int parentSpace, double maxWidth, double maxLength, double maxHeight, double maxWeight) {
+		if (spaceCount==length.length) {
+			allocateSpaces(spaceCount*2);
+		}
+		int space = spaceCount++;
+		this.maxWidth[space] = maxWidth;
+		this.maxLength[space] = maxLength;
+		this.maxHeight[space] = maxHeight;
+		this.maxWeight[space] = maxWeight;
+		parent[space] = parentSpace;
+		firstChild[space] = NONE;
+		lastChild[space] = NONE;
+		nextSibling[space] = NONE;
+		previousSibling[space] = NONE;
+		firstPlacement[space] = NONE;
+		lastPlacement[space] = NONE;
+		if (parentSpace==NONE) {
+			orientation[space] = Orientation.ANY;
+		} else {
+			orientation[space] = (parentSpace==ROOT) ? Orientation.VERTICAL : Orientation.HORIZONTAL;
+			int previous = lastChild[parentSpace];
+			if (previous==NONE) {
+				firstChild[parentSpace] = space;
+			} else {
+				nextSibling[previous] = space;
+				previousSibling[space] = previous;
+			}
+			lastChild[parentSpace] = space;
+			invalidateTotals(parentSpace);
+		}
+		return space;
+	}
+
+	/**
+	 * Remove the last child of the given cube space, marking it as {@link #detached}.
+	 */
+	void removeLastChild(int space) {
+		int child = lastChild[space];
+		if (child==NONE) {
+			return;
+		}
+		int previous = previousSibling[child];
+		lastChild[space] = previous;
+		if (previous==NONE) {
+			firstChild[space] = NONE;
+		} else {
+			nextSibling[previous] = NONE;
+		}
+		previousSibling[child] = NONE;
+		detached[child] = true;
+		invalidateTotals(space);
+	}
+
+	boolean hasChildren(int space) {
+		return firstChild[space]!=NONE;
+	}
+
+	/**
+	 * Place the item into the cube space.
+	 */
+	void addPlacement(int space, int item) {
+		if (placementCount==placementItem.length) {
+			allocatePlacements(placementCount*2);
+		}
+		int placement = placementCount++;
+		placementItem[placement] = item;
+		nextPlacement[placement] = NONE;
+		if (lastPlacement[space]==NONE) {
+			firstPlacement[space] = placement;
+		} else {
+			nextPlacement[lastPlacement[space]] = placement;
+		}
+		lastPlacement[space] = placement;
+		cubeCount[space]++;
+	}
+
+	/**
+	 * Move all the placements from one cube space to the end of another.
+	 */
+	void movePlacements(int fromSpace, int toSpace) {
+		if (firstPlacement[fromSpace]==NONE) {
+			return;
+		}
+		if (lastPlacement[toSpace]==NONE) {
+			firstPlacement[toSpace] = firstPlacement[fromSpace];
+		} else {
+			nextPlacement[lastPlacement[toSpace]] = firstPlacement[fromSpace];
+		}
+		lastPlacement[toSpace] = lastPlacement[fromSpace];
+		cubeCount[toSpace] += cubeCount[fromSpace];
+		firstPlacement[fromSpace] = NONE;
+		lastPlacement[fromSpace] = NONE;
+		cubeCount[fromSpace] = 0;
+	}
+
+	/**
+	 * As per {@link CubeSpace#invalidateTotals()}
+	 */
+	void invalidateTotals(int space) {
+		while (space!=NONE && totalsValid[space]) {
+			totalsValid[space] = false;
+			space = parent[space];
+		}
+	}
+
+	/**
+	 * As per {@link CubeSpace}, recalculate the cached totals from the cube space and its children.
+	 */
+	private void calculateTotals(int space) {
+		double totalLength = length[space];
+		double totalWidth = width[space];
+		double totalHeight = height[space];
+		double totalWeight = 0;
+		double subValue = 0;
+		for (int child = firstChild[space]; child!=NONE; child = nextSibling[child]) {
+			if (!totalsValid[child]) {
+				calculateTotals(child);
+			}
+			// width is the greatest width
+			if (this.totalWidth[child]>totalWidth) {
+				totalWidth = this.totalWidth[child];
+			}
+			subValue = this.totalLength[child];
+			if (orientation[child]==Orientation.VERTICAL) {
+				// If vertical find the greatest length
+				if (subValue>totalLength) {
+					totalLength = subValue;
+				}
+			} else {
+				// else amongst the horizontal add all lengths together
+				totalLength += subValue;
+			}
+			// height is only calculated from children if this cube space has no height of its own
+			subValue = this.totalHeight[child];
+			if (height[space]<=0 && subValue>0) {
+				if (orientation[child]==Orientation.VERTICAL) {
+					// if vertical add all heights together
+					totalHeight += subValue;
+				} else {
+					// else find the greatest height amongst the horizontal
+					if (subValue>totalHeight) {
+						totalHeight = subValue;
+					}
+				}
+			}
+			totalWeight += this.totalWeight[child];
+		}
+		this.totalLength[space] = totalLength;
+		this.totalWidth[space] = totalWidth;
+		this.totalHeight[space] = totalHeight;
+		this.totalWeight[space] = totalWeight;
+		this.totalsValid[space] = true;
+	}
+
+	double getTotalLength(int space) {
+		if (!totalsValid[space]) {
+			calculateTotals(space);
+		}
+		return totalLength[space];
+	}
+
+	double getTotalWidth(int space) {
+		if (!totalsValid[space]) {
+			calculateTotals(space);
+		}
+		return totalWidth[space];
+	}
+
+	double getTotalHeight(int space) {
+		if (!totalsValid[space]) {
+			calculateTotals(space);
+		}
+		return totalHeight[space];
+	}
+
+	double getTotalWeight(int space) {
+		if (!totalsValid[space]) {
+			calculateTotals(space);
+		}
+		return totalWeight[space];
+	}
+
+	double remainingLength(int space) {
+		return maxLength[space]-getTotalLength(space);
+	}
+
+	double remainingWidth(int space) {
+		return maxWidth[space]-getTotalWidth(space);
+	}
+
+	double remainingHeight(int space) {
+		return maxHeight[space]-getTotalHeight(space);
+	}
+
+	double remainingWeight(int space) {
+		return maxWeight[space]-getTotalWeight(space);
+	}
+
+	boolean isFull(int space) {
+		return (length[space]==maxLength[space] && width[space]==maxWidth[space] && height[space]==maxHeight[space]);
+	}
+
+	/**
+	 * As per {@link CubeSpace#raiseMaxHeight(double)}
+	 */
+	void raiseMaxHeight(int space, double newHeight) {
+		maxHeight[space] = newHeight;
+		for (int child = firstChild[space]; child!=NONE; child = nextSibling[child]) {
+			raiseMaxHeight(child, newHeight);
+		}
+	}
+
+	/**
+	 * Find the depth of each cube space, where the root has a depth of 0. A parent is always added before its children,
+	 * so the depths are found in one pass.
+	 *
+	 * @return the depths, with {@link #NONE} for the cube spaces which have been removed from the tree
+	 */
+	private int[] getDepths() {
+		int[] depths = new int[spaceCount];
+		for (int space=ROOT+1; space<spaceCount; space++) {
+			int parentDepth = depths[parent[space]];
+			depths[space] = (detached[space] || parentDepth==NONE) ? NONE : parentDepth+1;
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the depth of the deepest cube space, where the root has a depth of 0
+	 */
+	int getDepth() {
+		int maxDepth = 0;
+		for (int depth : getDepths()) {
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		return maxDepth;
+	}
+
+	/**
+	 * @return the number of cube spaces in the tree, not including those which have been removed
+	 */
+	int getAttachedSpaceCount() {
+		int count = 0;
+		for (int depth : getDepths()) {
+			if (depth!=NONE) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Show the PackingTree spaces=<spaces> cubes=<placements> and the total and max dimensions of the root cube space.
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+" spaces="+spaceCount+" cubes="+placementCount+" l="+getTotalLength(ROOT)+"/"+maxLength[ROOT]+", w="+getTotalWidth(ROOT)+"/"+maxWidth[ROOT]+" h="+getTotalHeight(ROOT)+"/"+maxHeight[ROOT];
+	}
+
+	/**
+	 * Convert this tree into {@link CubeSpace} objects, for returning the result.
+	 */
+	CubeSpace toCubeSpace() {
+		return toCubeSpace(ROOT, null);
+	}
+
+	private CubeSpace toCubeSpace(int space, CubeSpace parentCubeSpace) {
+		CubeSpace cubeSpace = new CubeSpace(parentCubeSpace, maxWidth[space], maxLength[space], maxHeight[space], maxWeight[space]);
+		cubeSpace.length = length[space];
+		cubeSpace.width = width[space];
+		cubeSpace.height = height[space];
+		cubeSpace.weight = weight[space];
+		cubeSpace.initialised = initialised[space];
+		for (int placement = firstPlacement[space]; placement!=NONE; placement = nextPlacement[placement]) {
+			cubeSpace.cubeList.add(itemSource[placementItem[placement]]);
+		}
+		cubeSpace.invalidateTotals();
+		for (int child = firstChild[space]; child!=NONE; child = nextSibling[child]) {
+			toCubeSpace(child, cubeSpace);
+		}
+		return cubeSpace;
+	}
+}
@@ -0,0 +1,234 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.PackingStrategy;
+
+/**
+ * A {@link PackingStrategy} which runs the {@link CubingServiceImpl} several times in parallel on a shared pool of
+ * threads, each time adding the cubes in a different order, and keeps the densest packing. The orders are set by the property
+ * "cube.portfolio.orderings", a comma separated list of:
+ * <ul>
+ * 	<li>height: highest first, the order of {@link CubeItem#compareTo(CubeItem)}</li>
+ * 	<li>volume: largest first</li>
+ * 	<li>longestSide: longest first, the order of {@link CubeItem.LongestSideComparator}</li>
+ * 	<li>random: shuffled, with a different seed for each</li>
+ * </ul>
+ * The packings which fit all the cubes all hold the same volume, so the densest is the one taking the least space,
+ * by the total length, width and height. If none fit, the failure of the first order is thrown.
+ *
+ * If the caller is interrupted, the orders still packing are interrupted too, so they do not hold up later calculations.
+ * The cubeList given is not modified, and the pool is shared by all calculations, so is safe for concurrent use.
+ */
+@Service
+public class PortfolioCubingService implements PackingStrategy {
+
+	public static Logger LOG = Logger.getLogger(PortfolioCubingService.class);
+
+	public static final String NAME = "portfolio";
+
+	public static final String ORDER_HEIGHT = "height";
+	public static final String ORDER_VOLUME = "volume";
+	public static final String ORDER_LONGEST_SIDE = "longestSide";
+	public static final String ORDER_RANDOM = "random";
+
+	@Autowired
+	private CubingServiceImpl cubingService;
+	private String[] orderings = {ORDER_HEIGHT, ORDER_VOLUME, ORDER_LONGEST_SIDE, ORDER_RANDOM, ORDER_RANDOM, ORDER_RANDOM, ORDER_RANDOM, ORDER_RANDOM};
+	/**
+	 * The number of threads in the pool, set by the property "cube.portfolio.threads". Defaults to the number of cores.
+	 */
+	@Value("${cube.portfolio.threads:0}")
+	private int threads;
+	private ExecutorService pool;
+
+	public PortfolioCubingService() {
+	}
+
+	public PortfolioCubingService(CubingServiceImpl cubingService) {
+		this.cubingService = cubingService;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Each thread packs its share of the orders one after another
+	 */
+	@Override
+	public long estimateNanos(int cubeCount) {
+		int rounds = (orderings.length+getPoolSize()-1)/getPoolSize();
+		return 50000L+rounds*cubingService.estimateNanos(cubeCount);
+	}
+
+	@Override
+	public double getExpectedQuality() {
+		return 75;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight) throws Exception {
+		return calculateCubeSpace(cubeList,maxLength,maxWidth,maxHeight,maxWeight,null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(final List<CubeItem> cubeList, final double maxLength, final double maxWidth, final double maxHeight, final double maxWeight, final Orientation orientation) throws Exception {
+		ExecutorService pool = getPool();
+		String[] orderings = this.orderings;
+		List<Future<CubeSpace>> tasks = new ArrayList<Future<CubeSpace>>(orderings.length);
+		// Trace the calculations of the pool threads, if the caller requested it
+		final Boolean traced = PackingTrace.getRequested();
+		for (int i=0; i<orderings.length; i++) {
+			final List<CubeItem> orderedList = getOrderedList(cubeList, orderings[i], i);
+			tasks.add(pool.submit(new Callable<CubeSpace>() {
+				@Override
+				public CubeSpace call() throws Exception {
+					PackingTrace.setRequested(traced);
+					try {
+						return cubingService.calculateCubeSpaceInOrder(orderedList, maxLength, maxWidth, maxHeight, maxWeight, orientation);
+					} finally {
+						PackingTrace.setRequested(null);
+					}
+				}
+			}));
+		}
+
+		CubeSpace bestSpace = null;
+		int bestIndex = -1;
+		Exception firstFailure = null;
+		try {
+			for (int i=0; i<tasks.size(); i++) {
+				try {
+					CubeSpace cubeSpace = tasks.get(i).get();
+					if (bestSpace==null || getExtentVolume(cubeSpace)<getExtentVolume(bestSpace)) {
+						bestSpace = cubeSpace;
+						bestIndex = i;
+					}
+				} catch (ExecutionException e) {
+					if (firstFailure==null) {
+						firstFailure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Interrupts the orders still packing
+			for (Future<CubeSpace> task : tasks) {
+				task.cancel(true);
+			}
+			throw e;
+		}
+		if (bestSpace==null) {
+			throw firstFailure;
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Best order="+orderings[bestIndex]+" of "+orderings.length+". "+bestSpace);
+		}
+		return bestSpace;
+	}
+
+	/**
+	 * Copy the cubeList into the order
+	 *
+	 * @param index the position of the order in the portfolio, the seed of a random order
+	 */
+	List<CubeItem> getOrderedList(List<CubeItem> cubeList, String ordering, int index) {
+		List<CubeItem> orderedList = new ArrayList<CubeItem>(cubeList);
+		if (ORDER_HEIGHT.equals(ordering)) {
+			Collections.sort(orderedList);
+		} else if (ORDER_VOLUME.equals(ordering)) {
+			Collections.sort(orderedList, BinPackingServiceImpl.VOLUME_DESCENDING);
+		} else if (ORDER_LONGEST_SIDE.equals(ordering)) {
+			Collections.sort(orderedList, new CubeItem.LongestSideComparator());
+		} else {
+			Collections.shuffle(orderedList, new Random(index));
+		}
+		return orderedList;
+	}
+
+	/**
+	 * @return the volume of the space the packing takes up
+	 */
+	private static double getExtentVolume(CubeSpace cubeSpace) {
+		return cubeSpace.getTotalLength()*cubeSpace.getTotalWidth()*cubeSpace.getTotalHeight();
+	}
+
+	private int getPoolSize() {
+		return threads>0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	private synchronized ExecutorService getPool() {
+		if (pool==null) {
+			pool = Executors.newFixedThreadPool(getPoolSize(), new ThreadFactory() {
+				private AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "portfolio-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (pool!=null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	public void setCubingService(CubingServiceImpl cubingService) {
+		this.cubingService = cubingService;
+	}
+
+	/**
+	 * Set the orders of the portfolio, by the property "cube.portfolio.orderings"
+	 */
+	@Value("${cube.portfolio.orderings:height,volume,longestSide,random,random,random,random,random}")
+	public void setOrderings(String orderings) {
+		String[] names = orderings.split(",");
+		for (int i=0; i<names.length; i++) {
+			names[i] = names[i].trim();
+			if (!ORDER_HEIGHT.equals(names[i]) && !ORDER_VOLUME.equals(names[i]) && !ORDER_LONGEST_SIDE.equals(names[i]) && !ORDER_RANDOM.equals(names[i])) {
+				throw new IllegalArgumentException("Unknown portfolio ordering: "+names[i]+". Use "+ORDER_HEIGHT+", "+ORDER_VOLUME+", "+ORDER_LONGEST_SIDE+" or "+ORDER_RANDOM);
+			}
+		}
+		this.orderings = names;
+	}
+
+	public synchronized void setThreads(int threads) {
+		shutdown();
+		this.threads = threads;
+	}
+}
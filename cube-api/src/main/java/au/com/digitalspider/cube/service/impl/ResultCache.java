@@ -0,0 +1,96 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache with hit and miss statistics. All methods are synchronized, so the cache can be
+ * shared between threads, and a value put by one thread is safely seen by others.
+ */
+public class ResultCache<K, V> {
+
+	private int maxSize;
+	private LinkedHashMap<K, V> map;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param maxSize the maximum number of entries, after which the least recently used entry is evicted. 0 disables the cache.
+	 */
+	public ResultCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size()>ResultCache.this.maxSize) {
+					evictionCount++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value, or null if there is none
+	 */
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value==null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return value;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (maxSize>0) {
+			map.put(key, value);
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public boolean isEnabled() {
+		return maxSize>0;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @return the percentage of lookups which were hits
+	 */
+	public synchronized double getHitPercent() {
+		long lookups = hitCount+missCount;
+		return lookups==0 ? 0 : hitCount*100.0/lookups;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ResultCache size=%d/%d hits=%d misses=%d evictions=%d hitRate=%.2f%%", map.size(), maxSize, hitCount, missCount, evictionCount, getHitPercent());
+	}
+}
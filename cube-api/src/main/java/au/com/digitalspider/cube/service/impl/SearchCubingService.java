@@ -0,0 +1,309 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
+import au.com.digitalspider.cube.service.PackingStrategy;
+
+/**
+ * A high density {@link PackingStrategy}, which searches for a better packing than a single greedy pass until its time
+ * budget runs out. The greedy packing of the {@link ExtremePointCubingService} is made first, so there is always a
+ * result. Then a local search changes the order the cube lines are placed in, and the rotation each line is tried in
+ * first, keeping each change which is no worse. The packings are compared by the volume of the cubes placed, so the
+ * search keeps looking for a packing which fits all the cubes when the greedy one does not, and then by the volume of
+ * the space the cubes take up, so the cubes are packed closer together.
+ *
+ * The budget is the time allowed by the {@link PackingStrategyRequest} of the current thread, or the property
+ * "cube.search.budget", and is capped by "cube.search.maxBudget". It is counted from the start of the request, so all
+ * the calculations of a request share one deadline, and only a calculation made without a request has a budget of its
+ * own. The search stops at the deadline, even in the middle of a packing, and returns the best packing found. Only the
+ * greedy packing is always completed.
+ *
+ * The cubeList given is not modified, and the service holds no state, so is safe for concurrent use.
+ */
+@Service
+public class SearchCubingService implements PackingStrategy {
+
+	public static Logger LOG = Logger.getLogger(SearchCubingService.class);
+
+	public static final String NAME = "search";
+
+	/**
+	 * The part of the budget the search runs for, leaving the rest for converting the result and the callers
+	 */
+	static final double SEARCH_FRACTION = 0.9;
+	/**
+	 * The number of cubes placed between checks of the deadline
+	 */
+	static final int DEADLINE_CHECK_INTERVAL = 64;
+	static final long SEED = 1;
+
+	private final ExtremePointCubingService greedyService = new ExtremePointCubingService();
+
+	/**
+	 * The time allowed when none is requested, set by the property "cube.search.budget" in milliseconds
+	 */
+	@Value("${cube.search.budget:200}")
+	private long budgetMillis = 200;
+	/**
+	 * The most time allowed, whatever is requested, set by the property "cube.search.maxBudget" in milliseconds
+	 */
+	@Value("${cube.search.maxBudget:1000}")
+	private long maxBudgetMillis = 1000;
+
+	/**
+	 * A packing of the cubes, by the order of the lines and the rotation of each line tried first
+	 */
+	static class Candidate {
+		final int[] order;
+		final int[] rotation;
+		ExtremePointPacking packing;
+		double placedVolume;
+		double boundingVolume;
+		CubeItem failedCube;
+		PlacementResult failedResult;
+
+		Candidate(int[] order, int[] rotation) {
+			this.order = order;
+			this.rotation = rotation;
+		}
+
+		/**
+		 * @return true if this places more volume, or the same volume in less space
+		 */
+		boolean isBetterThan(Candidate other) {
+			if (placedVolume!=other.placedVolume) {
+				return placedVolume>other.placedVolume;
+			}
+			return boundingVolume<other.boundingVolume;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * The search takes the budget, unless the greedy packing alone takes longer
+	 */
+	@Override
+	public long estimateNanos(int cubeCount) {
+		return Math.max(greedyService.estimateNanos(cubeCount), (long) (getBudgetMillis()*1000000L*SEARCH_FRACTION));
+	}
+
+	@Override
+	public double getExpectedQuality() {
+		return 80;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight) throws Exception {
+		return calculateCubeSpace(cubeList,maxLength,maxWidth,maxHeight,maxWeight,null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		long deadline = getDeadlineNanos();
+		List<CubeItem> sortedList = new ArrayList<CubeItem>(cubeList.size());
+		for (CubeItem cube : cubeList) {
+			sortedList.add(cube.copy());
+		}
+		// The same order as the greedy packing, so the first candidate is the greedy packing
+		Collections.sort(sortedList);
+		cubeList = sortedList;
+
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+
+		int lineCount = cubeList.size();
+		double[][][] rotations = new double[lineCount][][];
+		boolean rotatable = false;
+		for (int line=0; line<lineCount; line++) {
+			rotations[line] = BoxPacking.getRotations(cubeList.get(line), orientation, maxLength, maxWidth, maxHeight);
+			if (rotations[line].length==0) {
+				throw new Exception("Invalid cube exceeds constraints. Will never fit! "+cubeList.get(line));
+			}
+			rotatable |= rotations[line].length>1;
+		}
+
+		int[] order = new int[lineCount];
+		for (int line=0; line<lineCount; line++) {
+			order[line] = line;
+		}
+		Candidate best = pack(cubeList, rotations, new Candidate(order, new int[lineCount]), maxLength, maxWidth, maxHeight, maxWeight, Long.MAX_VALUE);
+		Candidate current = best;
+		int candidateCount = 1;
+		int improvementCount = 0;
+		// When the weight is exceeded, it is exceeded in any order
+		if ((lineCount>1 || rotatable) && best.failedResult!=PlacementResult.EXCEEDS_WEIGHT) {
+			Random random = new Random(SEED);
+			while (System.nanoTime()<deadline && !isPerfect(best)) {
+				Candidate candidate = pack(cubeList, rotations, change(current, rotations, rotatable, random), maxLength, maxWidth, maxHeight, maxWeight, deadline);
+				if (candidate==null) {
+					// The deadline passed while packing
+					break;
+				}
+				candidateCount++;
+				if (!current.isBetterThan(candidate)) {
+					current = candidate;
+					if (candidate.isBetterThan(best)) {
+						best = candidate;
+						improvementCount++;
+					}
+				}
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Searched candidates="+candidateCount+", improvements="+improvementCount+". Packed "+best.packing);
+		}
+		if (best.failedCube!=null) {
+			throw new Exception(best.packing+". Cube does not fit! result="+best.failedResult+" "+best.failedCube);
+		}
+		return best.packing.toCubeSpace();
+	}
+
+	/**
+	 * @return true if all the cubes are placed with no space between them, so no candidate can be better
+	 */
+	private boolean isPerfect(Candidate candidate) {
+		return candidate.failedCube==null && candidate.boundingVolume<=candidate.placedVolume+BoxPacking.EPSILON;
+	}
+
+	/**
+	 * Make a new candidate from the candidate by either swapping two lines, moving a line, or changing the rotation a
+	 * line is tried in first.
+	 */
+	private Candidate change(Candidate candidate, double[][][] rotations, boolean rotatable, Random random) {
+		int lineCount = candidate.order.length;
+		int[] order = candidate.order.clone();
+		int[] rotation = candidate.rotation.clone();
+		int move = lineCount<2 ? 2 : random.nextInt(rotatable ? 3 : 2);
+		if (move==0) {
+			int i = random.nextInt(lineCount);
+			int j = random.nextInt(lineCount);
+			int line = order[i];
+			order[i] = order[j];
+			order[j] = line;
+		} else if (move==1) {
+			int from = random.nextInt(lineCount);
+			int to = random.nextInt(lineCount);
+			int line = order[from];
+			if (from<to) {
+				System.arraycopy(order, from+1, order, from, to-from);
+			} else {
+				System.arraycopy(order, to, order, to+1, from-to);
+			}
+			order[to] = line;
+		} else {
+			int line = random.nextInt(lineCount);
+			while (rotations[line].length<2) {
+				line = (line+1)%lineCount;
+			}
+			rotation[line] = (rotation[line]+1+random.nextInt(rotations[line].length-1))%rotations[line].length;
+		}
+		return new Candidate(order, rotation);
+	}
+
+	/**
+	 * Pack the cubes as the candidate describes. Cubes which do not fit are skipped, so candidates which do not fit all
+	 * the cubes can still be compared.
+	 *
+	 * @return the candidate, or null if the deadline passed
+	 */
+	private Candidate pack(List<CubeItem> cubeList, double[][][] rotations, Candidate candidate, double maxLength, double maxWidth, double maxHeight, double maxWeight, long deadline) throws InterruptedException {
+		int lineCount = cubeList.size();
+		int boxCount = 0;
+		double[][][] orderedRotations = new double[lineCount][][];
+		for (int position=0; position<lineCount; position++) {
+			int line = candidate.order[position];
+			boxCount += Math.max(0, cubeList.get(line).quantity);
+			// The rotation tried first, followed by the others in their usual order
+			double[][] lineRotations = rotations[line];
+			orderedRotations[position] = new double[lineRotations.length][];
+			for (int i=0; i<lineRotations.length; i++) {
+				orderedRotations[position][i] = lineRotations[(candidate.rotation[line]+i)%lineRotations.length];
+			}
+		}
+		double[][] minimums = new double[lineCount+1][];
+		minimums[lineCount] = new double[] {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		for (int position=lineCount-1; position>=0; position--) {
+			minimums[position] = minimums[position+1].clone();
+			for (double[] rotation : orderedRotations[position]) {
+				for (int i=0; i<3; i++) {
+					minimums[position][i] = Math.min(minimums[position][i], rotation[i]);
+				}
+			}
+		}
+
+		ExtremePointPacking packing = new ExtremePointPacking(maxLength, maxWidth, maxHeight, maxWeight, boxCount);
+		int placedCount = 0;
+		for (int position=0; position<lineCount; position++) {
+			CubeItem cube = cubeList.get(candidate.order[position]);
+			double volume = cube.length*cube.width*cube.height;
+			for (int i=0; i<cube.quantity; i++) {
+				if (++placedCount%DEADLINE_CHECK_INTERVAL==0) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedException("Cubing interrupted. "+packing);
+					}
+					if (System.nanoTime()>deadline) {
+						return null;
+					}
+				}
+				PlacementResult result = packing.place(cube, orderedRotations[position], position, minimums[position]);
+				if (result.isFitted()) {
+					candidate.placedVolume += volume;
+				} else if (candidate.failedCube==null) {
+					candidate.failedCube = cube;
+					candidate.failedResult = result;
+				}
+			}
+		}
+		candidate.packing = packing;
+		candidate.boundingVolume = packing.usedLength*packing.usedWidth*packing.usedHeight;
+		return candidate;
+	}
+
+	/**
+	 * @return the time allowed for the current thread, in milliseconds
+	 */
+	long getBudgetMillis() {
+		PackingStrategyRequest request = PackingStrategyRequest.getRequested();
+		long budget = request!=null && request.getBudgetMillis()>0 ? request.getBudgetMillis() : budgetMillis;
+		return Math.min(budget, maxBudgetMillis);
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the search of the current thread stops at, counted from the start of its request
+	 */
+	long getDeadlineNanos() {
+		PackingStrategyRequest request = PackingStrategyRequest.getRequested();
+		long startNanos = request!=null ? request.getStartNanos() : System.nanoTime();
+		return startNanos+(long) (getBudgetMillis()*1000000L*SEARCH_FRACTION);
+	}
+
+	public void setBudgetMillis(long budgetMillis) {
+		this.budgetMillis = budgetMillis;
+	}
+
+	public void setMaxBudgetMillis(long maxBudgetMillis) {
+		this.maxBudgetMillis = maxBudgetMillis;
+	}
+}
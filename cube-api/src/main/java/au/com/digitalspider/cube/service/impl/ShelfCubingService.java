@@ -0,0 +1,156 @@
+package au.com.digitalspider.cube.service.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
+import au.com.digitalspider.cube.service.PackingStrategy;
+
+/**
+ * A fast {@link PackingStrategy} which packs the cubes in layers. Each layer is as high as its first cube, and is
+ * filled with strips along the length, each strip filled with a row of cubes along the width. A new strip is started
+ * when the row is full, and a new layer when the strips reach the end of the length. Each cube is placed once, and
+ * never compared to the other cubes placed, so the time is close to linear in the number of cubes, but the gaps left
+ * at the end of each row and strip are not filled.
+ *
+ * {@link Orientation#ANY} places each cube in its lowest rotation, and the cubes are packed tallest first. The result
+ * holds a cube space for each cube, at its x, y and z, as {@link ExtremePointCubingService} does.
+ *
+ * The cubeList given is not modified, and the service holds no state, so is safe for concurrent use.
+ */
+@Service
+public class ShelfCubingService implements PackingStrategy {
+
+	public static Logger LOG = Logger.getLogger(ShelfCubingService.class);
+
+	public static final String NAME = "shelf";
+
+	/**
+	 * The cubes of a line, with the rotation they are placed in
+	 */
+	static class Line {
+		final CubeItem cube;
+		final double length;
+		final double width;
+		final double height;
+
+		Line(CubeItem cube, double[] rotation) {
+			this.cube = cube;
+			this.length = rotation[0];
+			this.width = rotation[1];
+			this.height = rotation[2];
+		}
+	}
+
+	/**
+	 * Tallest first, then longest, then widest, so cubes of the same size are placed together
+	 */
+	static final Comparator<Line> TALLEST_FIRST = new Comparator<Line>() {
+		@Override
+		public int compare(Line lineLHS, Line lineRHS) {
+			int result = Double.compare(lineRHS.height, lineLHS.height);
+			if (result==0) {
+				result = Double.compare(lineRHS.length, lineLHS.length);
+			}
+			if (result==0) {
+				result = Double.compare(lineRHS.width, lineLHS.width);
+			}
+			return result;
+		}
+	};
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public long estimateNanos(int cubeCount) {
+		return 20000L+500L*cubeCount;
+	}
+
+	@Override
+	public double getExpectedQuality() {
+		return 50;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight) throws Exception {
+		return calculateCubeSpace(cubeList,maxLength,maxWidth,maxHeight,maxWeight,null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CubeSpace calculateCubeSpace(List<CubeItem> cubeList, double maxLength, double maxWidth, double maxHeight, double maxWeight, Orientation orientation) throws Exception {
+		if (orientation==null) {
+			orientation = Orientation.HORIZONTAL;
+		}
+		Line[] lines = new Line[cubeList.size()];
+		for (int i=0; i<lines.length; i++) {
+			CubeItem cube = cubeList.get(i);
+			double[][] rotations = BoxPacking.getRotations(cube, orientation, maxLength, maxWidth, maxHeight);
+			if (rotations.length==0) {
+				throw new Exception("Invalid cube exceeds constraints. Will never fit! "+cube);
+			}
+			lines[i] = new Line(cube.copy(), rotations[0]);
+		}
+		Arrays.sort(lines, TALLEST_FIRST);
+
+		BoxPacking packing = new BoxPacking(maxLength, maxWidth, maxHeight, maxWeight);
+		double layerZ = 0;
+		double layerHeight = 0;
+		double stripX = 0;
+		double stripLength = 0;
+		double rowY = 0;
+		for (Line line : lines) {
+			for (int i=0; i<line.cube.quantity; i++) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException("Cubing interrupted. "+packing);
+				}
+				if (!packing.fitsWeight(line.cube)) {
+					throw new Exception(packing+". Cube does not fit! result="+PlacementResult.EXCEEDS_WEIGHT+" "+line.cube);
+				}
+				if (rowY+line.width>maxWidth+BoxPacking.EPSILON) {
+					// Start a new strip
+					stripX += stripLength;
+					stripLength = 0;
+					rowY = 0;
+				}
+				if (stripX+line.length>maxLength+BoxPacking.EPSILON) {
+					// Start a new layer
+					layerZ += layerHeight;
+					layerHeight = 0;
+					stripX = 0;
+					stripLength = 0;
+					rowY = 0;
+				}
+				if (layerHeight==0) {
+					// The cubes are tallest first, so the first cube of a layer is the highest
+					layerHeight = line.height;
+				}
+				if (layerZ+line.height>maxHeight+BoxPacking.EPSILON) {
+					throw new Exception(packing+". Cube does not fit! result="+PlacementResult.NO_SPACE+" "+line.cube);
+				}
+				packing.addBox(stripX, rowY, layerZ, line.length, line.width, line.height, line.cube);
+				rowY += line.width;
+				stripLength = Math.max(stripLength, line.length);
+			}
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Packed "+packing);
+		}
+		return packing.toCubeSpace();
+	}
+}
@@ -1,13 +1,32 @@
 package au.com.digitalspider.cube.service.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 import au.com.digitalspider.cube.bean.CubeItem;
 import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.bean.PlacementResult;
 import au.com.digitalspider.cube.service.CubingService;
 import au.com.digitalspider.cube.service.SlottingService;
 
@@ -16,30 +35,194 @@ public class SlottingServiceImpl implements SlottingService {
 
 	public static Logger LOG = Logger.getLogger(SlottingServiceImpl.class);
 
+	@Autowired
 	private CubingService cubingService;
 
+	/**
+	 * The number of threads used to try the cube spaces in parallel, set by the property "cube.slotting.threads".
+	 * Defaults to 1, which tries the cube spaces one after another.
+	 */
+	@Value("${cube.slotting.threads:1}")
+	private int threads = 1;
+	private ExecutorService executor;
+
+	/**
+	 * The metrics of each slotting:
+	 * <ul>
+	 * 	<li>cube.slotting.time: the time taken</li>
+	 * 	<li>cube.slotting.candidates: the number of cube spaces packed to find the result</li>
+	 * 	<li>cube.slotting.failures: the number of slottings where no cube space fits</li>
+	 * 	<li>cube.slotting.rejections.&lt;PlacementResult&gt;: the number of cube spaces discarded without packing, by the reason</li>
+	 * </ul>
+	 */
+	private MetricRegistry metricRegistry;
+	private Timer slotTimer;
+	private Histogram candidatesHistogram;
+	private Counter failureCounter;
+
+	public SlottingServiceImpl() {
+		setMetricRegistry(new MetricRegistry());
+	}
+
 	@Override
 	public CubeSpace findCubeSpace(List<CubeItem> spaces, List<CubeItem> items) throws Exception {
+		Timer.Context timerContext = slotTimer.time();
+		// The spaces share the budget of one request, even when none was requested
+		boolean started = PackingStrategyRequest.getRequested()==null;
+		if (started) {
+			PackingStrategyRequest.setRequested(new PackingStrategyRequest(null, 0));
+		}
+		try {
+			return findOptimalCubeSpace(spaces, items);
+		} finally {
+			if (started) {
+				PackingStrategyRequest.setRequested(null);
+			}
+			timerContext.stop();
+		}
+	}
+
+	private CubeSpace findOptimalCubeSpace(List<CubeItem> spaces, List<CubeItem> items) throws Exception {
 		LOG.info("slotProduct START. spaces="+spaces+", items="+items);
 		LOG.debug("cubingService="+cubingService);
 
 
-		// Find the optimal CubeSpace by sorting the spaces, and finding the first type available using cubingService.calculateCubeSpace()
+		// Find the optimal CubeSpace by sorting a copy of the spaces, and finding the first type available using cubingService.calculateCubeSpace()
+		spaces = new ArrayList<CubeItem>(spaces);
 		Collections.sort(spaces);
-		CubeSpace optimalSpace = null;
+
+		// Discard the spaces which can never fit the items, without packing them
+		FeasibilityBounds bounds = new FeasibilityBounds(items, Orientation.HORIZONTAL);
+		List<CubeItem> candidateSpaces = new ArrayList<CubeItem>(spaces.size());
 		for (CubeItem cubeSpace : spaces) {
-			try {
-				optimalSpace = cubingService.calculateCubeSpace(items, cubeSpace.getLength(), cubeSpace.getWidth(), cubeSpace.getHeight(), cubeSpace.getWeight());
-				break;
-			} catch (Exception e) {
-				LOG.warn("CubeSpace ["+cubeSpace+"] could not fit items="+items+". ERROR: " +e.getMessage());
+			PlacementResult result = bounds.check(cubeSpace);
+			if (result.isFitted()) {
+				candidateSpaces.add(cubeSpace);
+			} else {
+				metricRegistry.counter("cube.slotting.rejections."+result).inc();
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("CubeSpace ["+cubeSpace+"] can never fit items. result="+result);
+				}
 			}
 		}
+		spaces = candidateSpaces;
+
+		CubeSpace optimalSpace = null;
+		int candidates = 0;
+		if (threads>1 && spaces.size()>1) {
+			// All the spaces are started in parallel
+			candidates = spaces.size();
+			optimalSpace = findCubeSpaceInParallel(spaces, items);
+		} else {
+			for (CubeItem cubeSpace : spaces) {
+				candidates++;
+				try {
+					optimalSpace = cubingService.calculateCubeSpace(items, cubeSpace.getLength(), cubeSpace.getWidth(), cubeSpace.getHeight(), cubeSpace.getWeight());
+					break;
+				} catch (Exception e) {
+					LOG.warn("CubeSpace ["+cubeSpace+"] could not fit items="+items+". ERROR: " +e.getMessage());
+				}
+			}
+		}
+		candidatesHistogram.update(candidates);
 		if (optimalSpace==null) {
+			failureCounter.inc();
 			throw new Exception("Could not find any cube space for items="+items+"!");
 		}
 		LOG.info("Found optimal cubeSpace = "+optimalSpace);
 		return optimalSpace;
 	}
 
+	/**
+	 * Try all the sorted spaces in parallel, returning the result of the first space in the list which fits the items,
+	 * so the result is the same as trying them one after another. Once a space is found, the spaces after it are cancelled.
+	 *
+	 * @param spaces the sorted cubeSpaces available
+	 * @param items the items to slot
+	 * @return the first CubeSpace that can take all the cubeItems, or null if none can
+	 * @throws InterruptedException if interrupted while waiting for the results
+	 */
+	private CubeSpace findCubeSpaceInParallel(List<CubeItem> spaces, final List<CubeItem> items) throws InterruptedException {
+		ExecutorService executor = getExecutor();
+		List<Future<CubeSpace>> futures = new ArrayList<Future<CubeSpace>>(spaces.size());
+		// Trace the calculations of the executor threads, and use the strategy, if the caller requested them
+		final Boolean traced = PackingTrace.getRequested();
+		final PackingStrategyRequest strategy = PackingStrategyRequest.getRequested();
+		for (final CubeItem cubeSpace : spaces) {
+			futures.add(executor.submit(new Callable<CubeSpace>() {
+				@Override
+				public CubeSpace call() throws Exception {
+					PackingTrace.setRequested(traced);
+					PackingStrategyRequest.setRequested(strategy);
+					try {
+						// calculateCubeSpace does not modify the items, so they are shared by all the spaces
+						return cubingService.calculateCubeSpace(items, cubeSpace.getLength(), cubeSpace.getWidth(), cubeSpace.getHeight(), cubeSpace.getWeight());
+					} finally {
+						PackingTrace.setRequested(null);
+						PackingStrategyRequest.setRequested(null);
+					}
+				}
+			}));
+		}
+		CubeSpace optimalSpace = null;
+		try {
+			for (int i=0; i<futures.size() && optimalSpace==null; i++) {
+				try {
+					optimalSpace = futures.get(i).get();
+				} catch (ExecutionException e) {
+					LOG.warn("CubeSpace ["+spaces.get(i)+"] could not fit items="+items+". ERROR: " +e.getCause().getMessage());
+				}
+			}
+		} finally {
+			// Cancel the remaining, larger spaces which are no longer needed
+			for (Future<CubeSpace> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return optimalSpace;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor==null) {
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "slotting-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (executor!=null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public void setCubingService(CubingService cubingService) {
+		this.cubingService = cubingService;
+	}
+
+	/**
+	 * Set the registry the metrics are recorded in, which is the registry of the actuator in the application
+	 */
+	@Autowired(required=false)
+	public void setMetricRegistry(MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+		slotTimer = metricRegistry.timer("cube.slotting.time");
+		candidatesHistogram = metricRegistry.histogram("cube.slotting.candidates");
+		failureCounter = metricRegistry.counter("cube.slotting.failures");
+	}
+
+	public synchronized void setThreads(int threads) {
+		shutdown();
+		this.threads = threads;
+	}
 }
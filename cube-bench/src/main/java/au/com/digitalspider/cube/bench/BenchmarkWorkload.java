@@ -0,0 +1,111 @@
+package au.com.digitalspider.cube.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.CubingService;
+
+/**
+ * Builds the seeded items and cube spaces used by the benchmarks, so every run measures the same workload.
+ */
+public class BenchmarkWorkload {
+
+	public static final long SEED = 20171001L;
+
+	/**
+	 * The fraction of the cube space volume filled by the items, before the cube space is grown to fit them
+	 */
+	public static final double FILL_RATIO = 0.5;
+
+	/**
+	 * How the units of an order are spread over its SKUs
+	 */
+	public enum QuantitySkew {
+		/** every SKU has the same quantity */
+		UNIFORM,
+		/** the quantity of each SKU falls away with its rank, so a few SKUs make up most of the units */
+		ZIPF;
+	}
+
+	/**
+	 * Create the items for an order of skuCount SKUs with sides from 1 to 10, and about unitsPerSku units per SKU.
+	 */
+	public static List<CubeItem> createItems(long seed, int skuCount, int unitsPerSku, QuantitySkew skew) {
+		Random random = new Random(seed);
+		double harmonic = 0;
+		for (int i=1; i<=skuCount; i++) {
+			harmonic += 1.0/i;
+		}
+		List<CubeItem> cubeList = new ArrayList<CubeItem>(skuCount);
+		for (int i=0; i<skuCount; i++) {
+			int quantity = unitsPerSku;
+			if (skew==QuantitySkew.ZIPF) {
+				quantity = (int) Math.max(1, Math.round(unitsPerSku*skuCount/(harmonic*(i+1))));
+			}
+			double length = 1+random.nextInt(10);
+			double width = 1+random.nextInt(10);
+			double height = 1+random.nextInt(10);
+			double weight = 0.1+random.nextInt(20)/10.0;
+			cubeList.add(new CubeItem("SKU"+i, length, width, height, weight, quantity));
+		}
+		return cubeList;
+	}
+
+	/**
+	 * Create a cube space with the given aspect ratio, in the format "length:width:height", large enough to hold the items
+	 * at {@link #FILL_RATIO}. The cube space is then grown until the cubingService can pack the items into it.
+	 */
+	public static CubeItem createCubeSpace(CubingService cubingService, List<CubeItem> cubeList, String aspectRatio, Orientation orientation) {
+		String[] ratio = aspectRatio.split(":");
+		double ratioLength = Double.parseDouble(ratio[0]);
+		double ratioWidth = Double.parseDouble(ratio[1]);
+		double ratioHeight = Double.parseDouble(ratio[2]);
+
+		double volume = 0;
+		double maxSide = 0;
+		for (CubeItem cube : cubeList) {
+			volume += cube.length*cube.width*cube.height*cube.quantity;
+			maxSide = Math.max(maxSide, Math.max(cube.length, Math.max(cube.width, cube.height)));
+		}
+		double scale = Math.cbrt(volume/FILL_RATIO/(ratioLength*ratioWidth*ratioHeight));
+		scale = Math.max(scale, maxSide/Math.min(ratioLength, Math.min(ratioWidth, ratioHeight)));
+
+		for (int attempt=0; attempt<50; attempt++) {
+			CubeItem space = new CubeItem("space", ratioLength*scale, ratioWidth*scale, ratioHeight*scale);
+			try {
+				cubingService.calculateCubeSpace(cubeList, space.length, space.width, space.height, 0, orientation);
+				return space;
+			} catch (Exception e) {
+				scale *= 1.1;
+			}
+		}
+		throw new IllegalStateException("Could not create a cube space "+aspectRatio+" for items="+cubeList);
+	}
+
+	/**
+	 * Create count cube spaces of increasing size, the largest of which is the given cube space
+	 */
+	public static List<CubeItem> createCubeSpaces(CubeItem largestSpace, int count) {
+		List<CubeItem> spaces = new ArrayList<CubeItem>(count);
+		for (int i=1; i<=count; i++) {
+			double scale = (double) i/count;
+			spaces.add(new CubeItem("space"+i, largestSpace.length*scale, largestSpace.width*scale, largestSpace.height*scale));
+		}
+		return spaces;
+	}
+
+	/**
+	 * Create the CSV input read by {@link au.com.digitalspider.cube.service.impl.CubingServiceImpl#parseCSVInput(String)}
+	 */
+	public static String createCSV(List<CubeItem> cubeList) {
+		StringBuilder csv = new StringBuilder("PID,weight,length,width,height,quantity\n");
+		for (CubeItem cube : cubeList) {
+			csv.append(cube.id).append(',').append(cube.weight).append(',').append(cube.length).append(',')
+					.append(cube.width).append(',').append(cube.height).append(',').append(cube.quantity).append('\n');
+		}
+		return csv.toString();
+	}
+}
@@ -0,0 +1,73 @@
+package au.com.digitalspider.cube.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.impl.CubingServiceImpl;
+
+/**
+ * Benchmarks the {@link CubeSpace} getTotal aggregates of a packed cube space, both when cached,
+ * and when recalculated after a change to the deepest cube space.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CubeSpaceTotalsBenchmark {
+
+	@Param({ "1", "10", "50" })
+	public int skuCount;
+
+	@Param({ "HORIZONTAL", "VERTICAL" })
+	public Orientation orientation;
+
+	private CubeSpace cubeSpace;
+	private CubeSpace deepestCubeSpace;
+
+	@Setup
+	public void setup() throws Exception {
+		CubingServiceImpl cubingService = new CubingServiceImpl();
+		List<CubeItem> cubeList = BenchmarkWorkload.createItems(BenchmarkWorkload.SEED, skuCount, 20, BenchmarkWorkload.QuantitySkew.UNIFORM);
+		CubeItem space = BenchmarkWorkload.createCubeSpace(cubingService, cubeList, "1:1:1", orientation);
+		cubeSpace = cubingService.calculateCubeSpace(cubeList, space.length, space.width, space.height, 0, orientation);
+		deepestCubeSpace = cubeSpace;
+		while (!deepestCubeSpace.childCubeSpaceList.isEmpty()) {
+			deepestCubeSpace = deepestCubeSpace.childCubeSpaceList.get(deepestCubeSpace.childCubeSpaceList.size()-1);
+		}
+	}
+
+	@Benchmark
+	public void cachedTotals(Blackhole blackhole) {
+		blackhole.consume(cubeSpace.getTotalLength());
+		blackhole.consume(cubeSpace.getTotalWidth());
+		blackhole.consume(cubeSpace.getTotalHeight());
+		blackhole.consume(cubeSpace.getTotalWeight());
+	}
+
+	@Benchmark
+	public void invalidatedTotals(Blackhole blackhole) {
+		deepestCubeSpace.invalidateTotals();
+		blackhole.consume(cubeSpace.getTotalLength());
+		blackhole.consume(cubeSpace.getTotalWidth());
+		blackhole.consume(cubeSpace.getTotalHeight());
+		blackhole.consume(cubeSpace.getTotalWeight());
+	}
+}
@@ -0,0 +1,72 @@
+package au.com.digitalspider.cube.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.PackingStrategy;
+import au.com.digitalspider.cube.service.impl.CubingServiceImpl;
+import au.com.digitalspider.cube.service.impl.ExtremePointCubingService;
+import au.com.digitalspider.cube.service.impl.LayerCubingService;
+import au.com.digitalspider.cube.service.impl.PackingStrategyServiceImpl;
+import au.com.digitalspider.cube.service.impl.ShelfCubingService;
+
+/**
+ * Benchmarks {@link CubingServiceImpl#calculateCubeSpace(List, double, double, double, double, Orientation)}, and the
+ * same for each of the other {@link PackingStrategy}s. Each engine packs into the smallest space it fits the items into.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CubingBenchmark {
+
+	@Param({ "1", "10", "50" })
+	public int skuCount;
+
+	@Param({ "UNIFORM", "ZIPF" })
+	public BenchmarkWorkload.QuantitySkew skew;
+
+	@Param({ "1:1:1", "2:1:1", "4:2:1" })
+	public String aspectRatio;
+
+	@Param({ "HORIZONTAL", "VERTICAL", "ANY" })
+	public Orientation orientation;
+
+	@Param({ "tree", "extremePoint", "shelf", "layer" })
+	public String engine;
+
+	private PackingStrategy cubingService;
+	private List<CubeItem> cubeList;
+	private CubeItem space;
+
+	@Setup
+	public void setup() {
+		cubingService = new PackingStrategyServiceImpl(Arrays.<PackingStrategy>asList(new CubingServiceImpl(), new ExtremePointCubingService(), new ShelfCubingService(),
+				new LayerCubingService())).getStrategy(engine);
+		cubeList = BenchmarkWorkload.createItems(BenchmarkWorkload.SEED, skuCount, 20, skew);
+		space = BenchmarkWorkload.createCubeSpace(cubingService, cubeList, aspectRatio, orientation);
+	}
+
+	@Benchmark
+	public CubeSpace calculateCubeSpace() throws Exception {
+		return cubingService.calculateCubeSpace(cubeList, space.length, space.width, space.height, 0, orientation);
+	}
+}
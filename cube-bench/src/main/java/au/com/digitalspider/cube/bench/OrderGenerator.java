@@ -0,0 +1,161 @@
+package au.com.digitalspider.cube.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubingInput;
+
+/**
+ * Generates seeded, synthetic orders as {@link CubingInput}, so the same seed always gives the same order.
+ * Items are one of a few realistic shapes, and the units of an order are spread over its SKUs so that a few SKUs
+ * make up most of the units.
+ */
+public class OrderGenerator {
+
+	/**
+	 * The fraction of the cube space volume filled by the order
+	 */
+	public static final double FILL_RATIO = 0.6;
+
+	/**
+	 * The shape of an item
+	 */
+	public enum ItemShape {
+		/** book like, eg 23x15x3 */
+		FLAT,
+		/** roughly equal sides, eg 20x18x18 */
+		CUBE,
+		/** long and thin, eg 100x6x6 */
+		LONG;
+	}
+
+	/**
+	 * The shapes of the items in an order
+	 */
+	public enum OrderMix {
+		FLATS, CUBES, LONG, MIXED;
+	}
+
+	private Random random;
+
+	public OrderGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Create an order of the given mix with the units spread over up to skuCount SKUs, and a single cube space
+	 * large enough to hold them.
+	 *
+	 * @param mix the shapes of the items
+	 * @param skuCount the number of SKUs, reduced to units if there are fewer units
+	 * @param units the total quantity of the order
+	 * @return the {@link CubingInput} with the cubeItems and a single cubeSpace
+	 */
+	public CubingInput createOrder(OrderMix mix, int skuCount, int units) {
+		skuCount = Math.max(1, Math.min(skuCount, units));
+		List<CubeItem> cubeItems = new ArrayList<CubeItem>(skuCount);
+		int[] quantities = createQuantities(skuCount, units);
+		for (int i=0; i<skuCount; i++) {
+			CubeItem cube = createItem("SKU"+i, getShape(mix));
+			cube.quantity = quantities[i];
+			cubeItems.add(cube);
+		}
+		CubingInput input = new CubingInput();
+		input.setCubeItems(cubeItems);
+		input.setCubeSpaces(Collections.singletonList(createCubeSpace(cubeItems)));
+		return input;
+	}
+
+	/**
+	 * Create an item with random dimensions for the shape, rounded to 1 decimal place
+	 */
+	public CubeItem createItem(String id, ItemShape shape) {
+		double length, width, height;
+		switch (shape) {
+		case FLAT:
+			length = between(15, 30);
+			width = between(10, length);
+			height = between(1, 5);
+			break;
+		case LONG:
+			length = between(60, 150);
+			width = between(3, 10);
+			height = between(3, width);
+			break;
+		case CUBE:
+		default:
+			length = between(5, 30);
+			width = round(length*between(0.8, 1.0));
+			height = round(length*between(0.8, 1.0));
+			break;
+		}
+		double weight = round(length*width*height/5000);
+		return new CubeItem(id, length, width, height, weight);
+	}
+
+	/**
+	 * Create a cube space with a length:width:height ratio of 1.2:1:1, which holds the items at {@link #FILL_RATIO},
+	 * and is at least as large as the largest item in each dimension.
+	 */
+	public CubeItem createCubeSpace(List<CubeItem> cubeItems) {
+		double volume = 0;
+		double maxLength = 0;
+		double maxWidth = 0;
+		double maxHeight = 0;
+		for (CubeItem cube : cubeItems) {
+			volume += cube.length*cube.width*cube.height*cube.quantity;
+			maxLength = Math.max(maxLength, cube.length);
+			maxWidth = Math.max(maxWidth, cube.width);
+			maxHeight = Math.max(maxHeight, cube.height);
+		}
+		double side = Math.cbrt(volume/FILL_RATIO/1.2);
+		double length = Math.max(side*1.2, maxLength);
+		double width = Math.max(side, maxWidth);
+		double height = Math.max(side, maxHeight);
+		return new CubeItem("space", round(length), round(width), round(height));
+	}
+
+	private ItemShape getShape(OrderMix mix) {
+		switch (mix) {
+		case FLATS:
+			return ItemShape.FLAT;
+		case CUBES:
+			return ItemShape.CUBE;
+		case LONG:
+			return ItemShape.LONG;
+		case MIXED:
+		default:
+			int shape = random.nextInt(10);
+			return shape<5 ? ItemShape.FLAT : shape<8 ? ItemShape.CUBE : ItemShape.LONG;
+		}
+	}
+
+	/**
+	 * Spread the units over the SKUs in proportion to 1/rank, with at least 1 unit each
+	 */
+	private int[] createQuantities(int skuCount, int units) {
+		double harmonic = 0;
+		for (int i=1; i<=skuCount; i++) {
+			harmonic += 1.0/i;
+		}
+		int[] quantities = new int[skuCount];
+		int remaining = units;
+		for (int i=skuCount-1; i>0; i--) {
+			quantities[i] = (int) Math.max(1, Math.min(remaining-i, Math.floor(units/(harmonic*(i+1)))));
+			remaining -= quantities[i];
+		}
+		quantities[0] = remaining;
+		return quantities;
+	}
+
+	private double between(double min, double max) {
+		return round(min+random.nextDouble()*(max-min));
+	}
+
+	private static double round(double value) {
+		return Math.round(value*10)/10.0;
+	}
+}
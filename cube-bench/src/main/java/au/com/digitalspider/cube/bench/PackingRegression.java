@@ -0,0 +1,202 @@
+package au.com.digitalspider.cube.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.CubingInput;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.impl.CubingServiceImpl;
+
+/**
+ * Packs a fixed suite of orders from the {@link OrderGenerator}, recording the wall time together with the packing quality,
+ * being the {@link CubeSpace#getVolumePercent()} and the number of cube spaces used. Speed and density are often traded
+ * against each other, so both are tracked in the same CSV.
+ *
+ * Usage: java -cp benchmarks.jar au.com.digitalspider.cube.bench.PackingRegression [output.csv] [baseline.csv]
+ *
+ * When a baseline is given, each scenario is compared with it, and the exit code is 1 if any scenario is
+ * slower by more than {@link #MAX_SLOWDOWN}, less dense by more than {@link #MAX_VOLUME_LOSS} percent, or no longer packs.
+ */
+public class PackingRegression {
+
+	public static final long SEED = 20171001L;
+	public static final int[] UNITS = { 1, 10, 100, 1000, 10000, 100000 };
+	public static final int SKU_COUNT = 20;
+	public static final int REPEATS = 3;
+	public static final int WARMUP_UNITS = 1000;
+
+	public static final double MAX_SLOWDOWN = 1.5;
+	public static final long MIN_SLOWDOWN_MILLIS = 20;
+	public static final double MAX_VOLUME_LOSS = 0.5;
+
+	public static final String HEADER = "scenario,mix,skus,units,orientation,wallMillis,volumePercent,spaces,result";
+
+	/**
+	 * The result of packing one scenario
+	 */
+	public static class Result {
+		public String scenario;
+		public OrderGenerator.OrderMix mix;
+		public int skus;
+		public int units;
+		public Orientation orientation;
+		public long wallMillis;
+		public double volumePercent;
+		public int spaces;
+		public String result;
+
+		public String toCSV() {
+			return String.format(Locale.ROOT, "%s,%s,%d,%d,%s,%d,%.2f,%d,%s", scenario, mix, skus, units, orientation, wallMillis, volumePercent, spaces, result);
+		}
+
+		public static Result fromCSV(String line) {
+			String[] parts = line.split(",");
+			Result result = new Result();
+			result.scenario = parts[0];
+			result.mix = OrderGenerator.OrderMix.valueOf(parts[1]);
+			result.skus = Integer.parseInt(parts[2]);
+			result.units = Integer.parseInt(parts[3]);
+			result.orientation = Orientation.valueOf(parts[4]);
+			result.wallMillis = Long.parseLong(parts[5]);
+			result.volumePercent = Double.parseDouble(parts[6]);
+			result.spaces = Integer.parseInt(parts[7]);
+			result.result = parts[8];
+			return result;
+		}
+	}
+
+	private CubingServiceImpl cubingService = new CubingServiceImpl();
+
+	public static void main(String[] args) throws Exception {
+		PackingRegression regression = new PackingRegression();
+		List<Result> results = regression.run();
+
+		PrintWriter writer = args.length>0 ? new PrintWriter(new FileWriter(args[0])) : new PrintWriter(System.out);
+		try {
+			writer.println(HEADER);
+			for (Result result : results) {
+				writer.println(result.toCSV());
+			}
+		} finally {
+			writer.flush();
+			if (args.length>0) {
+				writer.close();
+			}
+		}
+
+		if (args.length>1) {
+			List<String> regressions = compare(readCSV(new File(args[1])), results);
+			for (String message : regressions) {
+				System.err.println(message);
+			}
+			if (!regressions.isEmpty()) {
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Run every scenario, each order mix and size for each orientation
+	 */
+	public List<Result> run() {
+		// Warm up the JIT, so the first scenarios are not measured in the interpreter
+		for (int i=0; i<10; i++) {
+			run(OrderGenerator.OrderMix.MIXED, SKU_COUNT, WARMUP_UNITS, Orientation.ANY);
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (Orientation orientation : Arrays.asList(Orientation.HORIZONTAL, Orientation.ANY)) {
+			for (OrderGenerator.OrderMix mix : OrderGenerator.OrderMix.values()) {
+				for (int units : UNITS) {
+					results.add(run(mix, SKU_COUNT, units, orientation));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Pack the generated order REPEATS times, recording the fastest wall time
+	 */
+	public Result run(OrderGenerator.OrderMix mix, int skuCount, int units, Orientation orientation) {
+		CubingInput input = new OrderGenerator(SEED).createOrder(mix, skuCount, units);
+		CubeItem space = input.getCubeSpaces().get(0);
+
+		Result result = new Result();
+		result.scenario = mix+"-"+units+"-"+orientation;
+		result.mix = mix;
+		result.skus = input.getCubeItems().size();
+		result.units = units;
+		result.orientation = orientation;
+		result.wallMillis = Long.MAX_VALUE;
+		result.result = "OK";
+		for (int i=0; i<REPEATS; i++) {
+			long startTime = System.nanoTime();
+			try {
+				CubeSpace cubeSpace = cubingService.calculateCubeSpace(input.getCubeItems(), space.length, space.width, space.height, 0, orientation);
+				result.volumePercent = cubeSpace.getVolumePercent();
+				result.spaces = cubeSpace.getCubeSpaces().size();
+			} catch (Exception e) {
+				result.result = "FAIL";
+			}
+			result.wallMillis = Math.min(result.wallMillis, (System.nanoTime()-startTime)/1000000);
+		}
+		return result;
+	}
+
+	/**
+	 * Compare the results with the baseline, returning a message for each regression
+	 */
+	public static List<String> compare(List<Result> baseline, List<Result> results) {
+		Map<String, Result> baselineMap = new LinkedHashMap<String, Result>();
+		for (Result result : baseline) {
+			baselineMap.put(result.scenario, result);
+		}
+		List<String> regressions = new ArrayList<String>();
+		for (Result result : results) {
+			Result base = baselineMap.get(result.scenario);
+			if (base==null) {
+				continue;
+			}
+			if (base.result.equals("OK") && !result.result.equals("OK")) {
+				regressions.add(result.scenario+" no longer packs");
+				continue;
+			}
+			if (result.wallMillis>base.wallMillis*MAX_SLOWDOWN && result.wallMillis-base.wallMillis>MIN_SLOWDOWN_MILLIS) {
+				regressions.add(result.scenario+" is slower: "+result.wallMillis+"ms, was "+base.wallMillis+"ms");
+			}
+			if (result.volumePercent<base.volumePercent-MAX_VOLUME_LOSS) {
+				regressions.add(String.format(Locale.ROOT, "%s is less dense: %.2f%%, was %.2f%%", result.scenario, result.volumePercent, base.volumePercent));
+			}
+		}
+		return regressions;
+	}
+
+	public static List<Result> readCSV(File file) throws IOException {
+		List<Result> results = new ArrayList<Result>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length()==0 || line.startsWith("scenario")) {
+					continue;
+				}
+				results.add(Result.fromCSV(line));
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+}
@@ -0,0 +1,62 @@
+package au.com.digitalspider.cube.bench;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.service.impl.CubeItemCSVReader;
+import au.com.digitalspider.cube.service.impl.CubingServiceImpl;
+
+/**
+ * Benchmarks {@link CubingServiceImpl#parseCSVInput(String)} for a CSV of lineCount lines, and reading the same CSV
+ * one item at a time with a {@link CubeItemCSVReader}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseCSVBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int lineCount;
+
+	private CubingServiceImpl cubingService;
+	private String csv;
+
+	@Setup
+	public void setup() {
+		cubingService = new CubingServiceImpl();
+		csv = BenchmarkWorkload.createCSV(BenchmarkWorkload.createItems(BenchmarkWorkload.SEED, lineCount, 20, BenchmarkWorkload.QuantitySkew.ZIPF));
+	}
+
+	@Benchmark
+	public List<CubeItem> parseCSVInput() throws Exception {
+		return cubingService.parseCSVInput(csv);
+	}
+
+	@Benchmark
+	public void readCSV(Blackhole blackhole) throws Exception {
+		CubeItemCSVReader reader = new CubeItemCSVReader(new StringReader(csv));
+		CubeItem cube;
+		while ((cube = reader.next()) != null) {
+			blackhole.consume(cube);
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,75 @@
+package au.com.digitalspider.cube.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.digitalspider.cube.bean.CubeItem;
+import au.com.digitalspider.cube.bean.CubeSpace;
+import au.com.digitalspider.cube.bean.Orientation;
+import au.com.digitalspider.cube.service.impl.CubingServiceImpl;
+import au.com.digitalspider.cube.service.impl.SlottingServiceImpl;
+
+/**
+ * Benchmarks {@link SlottingServiceImpl#findCubeSpace(List, List)}, choosing from spaceCount cube spaces
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SlottingBenchmark {
+
+	@Param({ "1", "10", "50" })
+	public int skuCount;
+
+	@Param({ "UNIFORM", "ZIPF" })
+	public BenchmarkWorkload.QuantitySkew skew;
+
+	@Param({ "1:1:1", "4:2:1" })
+	public String aspectRatio;
+
+	@Param({ "5", "20" })
+	public int spaceCount;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private SlottingServiceImpl slottingService;
+	private List<CubeItem> cubeList;
+	private List<CubeItem> spaces;
+
+	@Setup
+	public void setup() {
+		CubingServiceImpl cubingService = new CubingServiceImpl();
+		slottingService = new SlottingServiceImpl();
+		slottingService.setCubingService(cubingService);
+		slottingService.setThreads(threads);
+		cubeList = BenchmarkWorkload.createItems(BenchmarkWorkload.SEED, skuCount, 20, skew);
+		CubeItem space = BenchmarkWorkload.createCubeSpace(cubingService, cubeList, aspectRatio, Orientation.HORIZONTAL);
+		spaces = BenchmarkWorkload.createCubeSpaces(space, spaceCount);
+	}
+
+	@TearDown
+	public void tearDown() {
+		slottingService.shutdown();
+	}
+
+	@Benchmark
+	public CubeSpace findCubeSpace() throws Exception {
+		return slottingService.findCubeSpace(spaces, cubeList);
+	}
+}